@@ -0,0 +1,36 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command executed by {@link CommandBenchmark}. A top level class with
+ * package private options, which gets a dispatcher generated.
+ */
+class BenchmarkCommand {
+    @CliOption(shortName = "n")
+    Integer number;
+    @CliOption(shortName = "u")
+    TimeUnit unit;
+
+    String name;
+    Integer count;
+
+    @CliCmd
+    void dispatched(String name, Integer count) {
+        this.name = name;
+        this.count = count;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Execute a command on an existing instance with two options and two arguments,
+ * through reflection and through a generated dispatcher. Option injection,
+ * argument conversion and the method call are included, parsing is not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    Command reflective;
+    GNUishParser reflectiveInput;
+    Command dispatched;
+    GNUishParser dispatchedInput;
+
+    @Setup
+    public void setup() {
+        reflective = create(new ReflectiveCommand());
+        reflectiveInput = parse("reflective");
+        dispatched = create(new BenchmarkCommand());
+        dispatchedInput = parse("dispatched");
+        if (CliDispatcher.get(BenchmarkCommand.class) == null) {
+            throw new IllegalStateException("No dispatcher generated for BenchmarkCommand");
+        }
+    }
+
+    @Benchmark
+    public void reflective() {
+        reflective.execute(reflectiveInput);
+    }
+
+    @Benchmark
+    public void dispatched() {
+        dispatched.execute(dispatchedInput);
+    }
+
+    private static Command create(Object instance) {
+        final Command cmd = Command.create(instance).get(0);
+        cmd.setInstance(instance);
+        return cmd;
+    }
+
+    private static GNUishParser parse(String command) {
+        return GNUishParser.parse(new String[] { command, "-n", "10", "-u", "SECONDS", "name",
+                "20" });
+    }
+
+    /**
+     * Nested classes does not get a dispatcher and are executed through reflection.
+     */
+    static class ReflectiveCommand {
+        @CliOption(shortName = "n")
+        Integer number;
+        @CliOption(shortName = "u")
+        TimeUnit unit;
+
+        String name;
+        Integer count;
+
+        @CliCmd
+        void reflective(String name, Integer count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Convert a value with each of the default converters, with the converter
+ * already in the lookup cache. Lookups that miss the cache are measured by
+ * {@link ConversionMissBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+    /** source value and target class of each default converter */
+    @Param({ "number", "boolean", "enum", "object", "string" })
+    String converter;
+
+    Conversion conversion = Conversion.get();
+    Object source;
+    Class<?> target;
+
+    @Setup
+    public void setup() {
+        switch (converter) {
+        case "number":
+            source = "12345";
+            target = Integer.class;
+            break;
+        case "boolean":
+            source = "true";
+            target = Boolean.class;
+            break;
+        case "enum":
+            source = "SECONDS";
+            target = TimeUnit.class;
+            break;
+        case "object":
+            source = "/tmp";
+            target = File.class;
+            break;
+        case "string":
+            source = 12345;
+            target = String.class;
+            break;
+        default:
+            throw new IllegalArgumentException(converter);
+        }
+        conversion.convert(source, target);
+    }
+
+    @Benchmark
+    public Object convert() {
+        return conversion.convert(source, target);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Convert values to a batch of distinct target types on a new Conversion that
+ * has looked up nothing yet, so that every conversion miss the lookup cache.
+ * Scores are per conversion. Creating the Conversion is part of each call and is
+ * measured on its own by {@link #create()}, divided over the same batch size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionMissBenchmark {
+    /** source values, converted to the target class at the same position */
+    static final Object[] SOURCES = { "12345", "12345", "1.5", "1.5", "true", "SECONDS",
+            "RUNNABLE", "/tmp", "file:/tmp", 12345 };
+    static final Class<?>[] TARGETS = { Integer.class, Long.class, Double.class,
+            BigDecimal.class, Boolean.class, TimeUnit.class, Thread.State.class, File.class,
+            URI.class, String.class };
+    static final int BATCH = 10;
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Conversion create() {
+        return new Conversion(false);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void miss(Blackhole bh) {
+        final Conversion conversion = new Conversion(false);
+        for (int i = 0; i < BATCH; i++) {
+            bh.consume(conversion.convert(SOURCES[i], TARGETS[i]));
+        }
+    }
+}
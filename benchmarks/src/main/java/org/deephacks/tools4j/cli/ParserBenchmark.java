@@ -0,0 +1,73 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse command lines with a growing number of words, an even mix of short
+ * options, long options and arguments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({ "1", "10", "100" })
+    int words;
+
+    String[] args;
+
+    @Setup
+    public void setup() {
+        final List<String> list = new ArrayList<String>();
+        list.add("command");
+        for (int i = 0; list.size() <= words; i++) {
+            switch (i % 3) {
+            case 0:
+                list.add("-" + (char) ('a' + i % 26));
+                list.add(Integer.toString(i));
+                break;
+            case 1:
+                list.add("--option" + i);
+                list.add("value" + i);
+                break;
+            default:
+                list.add("argument" + i);
+            }
+        }
+        args = list.subList(0, words + 1).toArray(new String[0]);
+    }
+
+    @Benchmark
+    public GNUishParser parse() {
+        return GNUishParser.parse(args);
+    }
+}
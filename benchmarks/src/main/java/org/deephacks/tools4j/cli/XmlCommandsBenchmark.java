@@ -0,0 +1,90 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.deephacks.tools4j.cli.Command.Argument;
+import org.deephacks.tools4j.cli.Command.Option;
+import org.deephacks.tools4j.cli.Command.XmlCommands;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Read command metadata from commands.xml, for a small and a large number of
+ * commands. The binary command index is read for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlCommandsBenchmark {
+    @Param({ "5", "500" })
+    int commands;
+
+    byte[] xml;
+    byte[] index;
+
+    @Setup
+    public void setup() throws IOException {
+        final Map<String, Command> cmds = new LinkedHashMap<String, Command>();
+        for (int i = 0; i < commands; i++) {
+            final Command cmd = new Command("command" + i, "org.example.Command" + i,
+                    "Documentation of command " + i);
+            cmd.addOptions(new Option("a", "alpha", "first option"));
+            cmd.addOptions(new Option("b", "beta", "second option"));
+            cmd.addArgument(new Argument("file", "java.io.File", 0, "input file"));
+            cmd.addArgument(new Argument("count", "java.lang.Integer", 1, "how many"));
+            cmds.put(cmd.getCommand(), cmd);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PrintWriter pw = new PrintWriter(out);
+        XmlCommands.toXml(cmds, pw);
+        pw.flush();
+        xml = new String(out.toByteArray()).getBytes(StandardCharsets.UTF_8);
+        out.reset();
+        CommandIndex.write(cmds.values(), out);
+        index = out.toByteArray();
+    }
+
+    @Benchmark
+    public List<Command> fromXml() {
+        return XmlCommands.fromXml(new ByteArrayInputStream(xml));
+    }
+
+    @Benchmark
+    public List<Command> index() {
+        return CommandIndex.open(ByteBuffer.wrap(index)).all();
+    }
+}
@@ -22,29 +22,44 @@ import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.ElementFilter;
 import javax.tools.FileObject;
 import javax.tools.StandardLocation;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
- * AnnotationProcessor is responsible for producing a command.xml to remove this
- * burden from the developer. It will look at the javadoc for command methods and
- * their arguments, also the class parameters (options).
+ * AnnotationProcessor is responsible for producing a command.xml, and its binary
+ * counterpart commands.idx, to remove this burden from the developer. It will look
+ * at the javadoc for command methods and their arguments, also the class parameters
+ * (options).
  * <p>
  * This information will be used to display a command help screen whenever the user
  * requests it, including a description of all arguments and options.
+ * <p>
+ * A {@link CliDispatcher} is also generated for each class that declare commands,
+ * as long as the class is accessible from its own package, together with GraalVM
+ * native-image configuration for everything that is accessed through reflection,
+ * and bash and zsh completion scripts for the commands.
  */
 public final class AnnotationProcessor extends AbstractProcessor {
   private Map<String, Command> commands = new HashMap<String, Command>();
+  private NativeImageConfig nativeImage;
+  private CompletionScripts completion;
 
   public AnnotationProcessor() {
     super();
@@ -60,6 +75,11 @@ public final class AnnotationProcessor extends AbstractProcessor {
     return new HashSet<>(Arrays.asList(CliCmd.class.getName()));
   }
 
+  @Override
+  public Set<String> getSupportedOptions() {
+    return new HashSet<>(Arrays.asList(CompletionScripts.PROGRAM_OPTION));
+  }
+
   public
   @Override
   final boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
@@ -82,7 +102,26 @@ public final class AnnotationProcessor extends AbstractProcessor {
                                   RoundEnvironment roundEnv) {
     debug("ServiceProviderAnnotationProcessor");
 
-    for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+    final DispatcherGenerator dispatchers = new DispatcherGenerator(processingEnv);
+    if (nativeImage == null) {
+      nativeImage = new NativeImageConfig(processingEnv);
+      completion = new CompletionScripts(processingEnv);
+    }
+    for (TypeElement type : commandTypes(ElementFilter.typesIn(roundEnv.getRootElements()),
+            new ArrayList<TypeElement>())) {
+      if (!declaresCommands(type)) {
+        continue;
+      }
+      final List<VariableElement> options = dispatchers.optionFields(type);
+      final boolean constrainedOpts = dispatchers.constrainsOptions(type);
+      final String group = groupOf(type);
+      // nested classes are executed through reflection
+      final boolean topLevel = type.getNestingKind() == NestingKind.TOP_LEVEL;
+      try {
+        nativeImage.add(type, options, topLevel && dispatchers.generate(type));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
 
       for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
         CliCmd cc = method.getAnnotation(CliCmd.class);
@@ -91,8 +130,9 @@ public final class AnnotationProcessor extends AbstractProcessor {
         }
         final String javadoc = processingEnv.getElementUtils().getDocComment(method);
         final String methodjavadoc = Utils.parseJavadoc(javadoc);
-        final Command cmd = new Command(method.getSimpleName().toString(), type
-                .getQualifiedName().toString(), methodjavadoc);
+        final Command cmd = new Command(Command.path(group, method.getSimpleName()
+                .toString()), processingEnv.getElementUtils().getBinaryName(type).toString(),
+                methodjavadoc);
         final HashMap<String, String> paramjavadoc = Utils.parseParamsJavadoc(javadoc);
         int pos = 0;
         for (VariableElement e : method.getParameters()) {
@@ -101,31 +141,90 @@ public final class AnnotationProcessor extends AbstractProcessor {
           cmd.addArgument(new Argument(var, e.asType().toString(), pos++, paramjavadoc
                   .get(var)));
         }
+        cmd.setConstrained(constrainedOpts, dispatchers.constrainsArguments(type, method));
         commands.put(cmd.getCommand(), cmd);
-        for (VariableElement var : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+        for (VariableElement var : options) {
           final String varjavadoc = Utils.parseJavadoc(processingEnv.getElementUtils()
                   .getDocComment(var));
           CliOption anno = var.getAnnotation(CliOption.class);
-          if (anno == null) {
-            continue;
-          }
           final String shortName = anno.shortName();
+          final TypeMirror varType = var.asType();
           final Option opt = new Option(shortName, var.getSimpleName().toString(),
-                  varjavadoc);
+                  varjavadoc, varType.getKind() == TypeKind.BOOLEAN
+                          || "java.lang.Boolean".equals(varType.toString()));
           cmd.addOptions(opt);
         }
+        completion.add(cmd, method, options);
       }
 
     }
     return false;
   }
 
+  /**
+   * @return the types given and their static member types, at any depth.
+   */
+  private static List<TypeElement> commandTypes(Collection<TypeElement> types,
+                                                List<TypeElement> result) {
+    for (TypeElement type : types) {
+      result.add(type);
+      final List<TypeElement> members = new ArrayList<TypeElement>();
+      for (TypeElement member : ElementFilter.typesIn(type.getEnclosedElements())) {
+        if (member.getModifiers().contains(Modifier.STATIC)) {
+          members.add(member);
+        }
+      }
+      commandTypes(members, result);
+    }
+    return result;
+  }
+
+  /**
+   * @return the group of the commands of a class, including groups of enclosing
+   * classes, or null if they are not grouped.
+   */
+  private static String groupOf(TypeElement type) {
+    String group = null;
+    for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+      final CliGroup anno = e.getAnnotation(CliGroup.class);
+      if (anno != null) {
+        group = Command.path(anno.value(), group);
+      }
+    }
+    return group;
+  }
+
+  private static boolean declaresCommands(TypeElement type) {
+    for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+      if (method.getAnnotation(CliCmd.class) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private void writeFiles() {
     try {
       FileObject file = processingEnv.getFiler().createResource(
               StandardLocation.CLASS_OUTPUT, "", XmlCommands.FILEPATH, (Element[]) null);
       PrintWriter pw = new PrintWriter(file.openWriter());
-      XmlCommands.toXml(commands, pw);
+      // JAXB find its implementation through the context class loader, which
+      // may not be the class loader of the processor when running inside javac
+      final Thread thread = Thread.currentThread();
+      final ClassLoader contextCL = thread.getContextClassLoader();
+      thread.setContextClassLoader(AnnotationProcessor.class.getClassLoader());
+      try {
+        XmlCommands.toXml(commands, pw);
+      } finally {
+        thread.setContextClassLoader(contextCL);
+      }
+      FileObject index = processingEnv.getFiler().createResource(
+              StandardLocation.CLASS_OUTPUT, "", CommandIndex.FILEPATH, (Element[]) null);
+      CommandIndex.write(commands.values(), index.openOutputStream());
+      if (nativeImage != null) {
+        nativeImage.write();
+        completion.write();
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
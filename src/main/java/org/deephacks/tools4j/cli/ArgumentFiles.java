@@ -0,0 +1,196 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ArgumentFiles is responsible for expanding argument files, which let the user
+ * give more arguments than the operating system allow on a command line.
+ * <p>
+ * An argument given as @file is replaced with the words of the file, split using
+ * the quoting rules of {@link ShellTokenizer} where newlines separate words like any
+ * other whitespace. Words of the file may refer to other files. @- read the words
+ * from standard input and @@word is the literal argument @word. Words after "--"
+ * are not expanded, like options they are taken literally.
+ * <p>
+ * Files are UTF-8 encoded, memory mapped and decoded in small chunks, so only the
+ * resulting words are kept on the heap. Relative paths are resolved against the
+ * working directory of the user and standard input is that of the user, see
+ * {@link CliEnvironment}.
+ */
+final class ArgumentFiles {
+    /** number of characters decoded at a time */
+    private static final int CHUNK_SIZE = 8192;
+    /** word that end options and expansion of argument files */
+    private static final String END_OF_OPTIONS = "--";
+
+    private ArgumentFiles() {
+    }
+
+    /**
+     * @return the arguments with argument files replaced by their words, the same
+     * array if there are no argument files.
+     * @throws CliException if a file cannot be read or refers to itself.
+     */
+    static String[] expand(String[] args) {
+        int first = 0;
+        while (first < args.length && !isReference(args[first])) {
+            if (END_OF_OPTIONS.equals(args[first])) {
+                return args;
+            }
+            first++;
+        }
+        if (first == args.length) {
+            return args;
+        }
+        final List<String> result = new ArrayList<String>(args.length);
+        for (int i = 0; i < first; i++) {
+            result.add(args[i]);
+        }
+        final Set<Path> open = new HashSet<Path>();
+        boolean literal = false;
+        for (int i = first; i < args.length; i++) {
+            if (literal) {
+                result.add(args[i]);
+            } else {
+                literal = expand(args[i], result, open);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static boolean isReference(String arg) {
+        return arg.length() > 1 && arg.charAt(0) == '@';
+    }
+
+    /**
+     * Add an argument, or the words of the file it refer to, to the result.
+     *
+     * @param open files that are being expanded.
+     * @return true if "--" was added, after which words are not expanded.
+     */
+    private static boolean expand(String arg, List<String> result, Set<Path> open) {
+        if (!isReference(arg)) {
+            result.add(arg);
+            return END_OF_OPTIONS.equals(arg);
+        }
+        final String name = arg.substring(1);
+        if (name.charAt(0) == '@') {
+            result.add(name);
+            return false;
+        }
+        final List<String> words = new ArrayList<String>();
+        if ("-".equals(name)) {
+            readStdin(new ShellTokenizer(words));
+            return expand(words, result, open);
+        }
+        final Path path;
+        try {
+            path = CliEnvironment.resolve(name).toPath().toRealPath();
+        } catch (IOException e) {
+            throw new CliException("Cannot read argument file " + name, e);
+        }
+        if (!open.add(path)) {
+            throw new CliException("Argument file " + name + " refers to itself");
+        }
+        read(path, new ShellTokenizer(words));
+        final boolean literal = expand(words, result, open);
+        open.remove(path);
+        return literal;
+    }
+
+    /**
+     * Add the words of a file to the result, expanding those before "--".
+     *
+     * @return true if "--" was added.
+     */
+    private static boolean expand(List<String> words, List<String> result, Set<Path> open) {
+        boolean literal = false;
+        for (String word : words) {
+            if (literal) {
+                result.add(word);
+            } else {
+                literal = expand(word, result, open);
+            }
+        }
+        return literal;
+    }
+
+    private static void read(Path path, ShellTokenizer tokenizer) {
+        try {
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                read(channel, tokenizer);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new CliException("Cannot read argument file " + path, e);
+        }
+        tokenizer.end(path);
+    }
+
+    private static void read(FileChannel channel, ShellTokenizer tokenizer) throws IOException {
+        final ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+        // the whole input is available, a full chunk is the only reason to stop
+        while (decoder.decode(bytes, chars, true).isOverflow()) {
+            tokenize(chars, tokenizer);
+        }
+        while (decoder.flush(chars).isOverflow()) {
+            tokenize(chars, tokenizer);
+        }
+        tokenize(chars, tokenizer);
+    }
+
+    private static void readStdin(ShellTokenizer tokenizer) {
+        // standard input is not closed, it belong to the process
+        final Reader reader = new InputStreamReader(CliEnvironment.getIn(),
+                StandardCharsets.UTF_8);
+        final char[] chunk = new char[CHUNK_SIZE];
+        try {
+            int read;
+            while ((read = reader.read(chunk)) >= 0) {
+                tokenizer.accept(CharBuffer.wrap(chunk, 0, read));
+            }
+        } catch (IOException e) {
+            throw new CliException("Cannot read arguments from standard input", e);
+        }
+        tokenizer.end("standard input");
+    }
+
+    private static void tokenize(CharBuffer chars, ShellTokenizer tokenizer) {
+        chars.flip();
+        tokenizer.accept(chars);
+        chars.clear();
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.deephacks.tools4j.cli.Command.XmlCommands;
+
+/**
+ * CdsArchive create a HotSpot class data sharing archive of the classes that are
+ * loaded when commands are executed; tools4j-cli, JAXB, command classes and their
+ * dispatchers. Sharing these classes between executions cut down the time it takes
+ * to load them.
+ * <p>
+ * A JVM can only dump the classes it has loaded when it exits, so the training is
+ * done in a new JVM that use the same classpath. The training displays the help
+ * screen of every command, which goes through the same steps as an execution
+ * without running any user code.
+ * <p>
+ * An argument file is written next to the archive that the java launcher use to
+ * pick up the archive on later launches.
+ * <pre>
+ * $ java -Dtools4j.cli.cds.dump=app.jsa -jar app.jar
+ * $ java @app.jsa.args -jar app.jar [COMMAND]
+ * </pre>
+ * Require JDK 13 or later and a classpath of jar files only.
+ */
+final class CdsArchive {
+    /** system property that trigger a dump of the archive to a file */
+    static final String DUMP_PROPERTY = "tools4j.cli.cds.dump";
+    /** system property set in the JVM that does the training */
+    static final String TRAINING_PROPERTY = "tools4j.cli.cds.training";
+    /** suffix of the java launcher argument file */
+    static final String ARGS_SUFFIX = ".args";
+
+    private CdsArchive() {
+    }
+
+    /**
+     * Dump an archive by training a new JVM and write the argument file that
+     * enable the archive.
+     */
+    static void dump(File archive) {
+        archive = archive.getAbsoluteFile();
+        try {
+            final Process process = new ProcessBuilder(trainingCommand(archive)).inheritIO()
+                    .start();
+            final int exit = process.waitFor();
+            if (exit != 0 || !archive.exists()) {
+                throw new CliException("Could not dump class data sharing archive " + archive
+                        + ", training exited with " + exit + ".");
+            }
+            writeArgs(archive);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return command line of a JVM that train and dump the archive, with the
+     * classpath and tools4j-cli system properties of this JVM.
+     */
+    static List<String> trainingCommand(File archive) {
+        final List<String> cmd = new ArrayList<String>();
+        cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        cmd.add("-XX:ArchiveClassesAtExit=" + archive.getPath());
+        cmd.add("-D" + TRAINING_PROPERTY + "=true");
+        for (Map.Entry<Object, Object> e : System.getProperties().entrySet()) {
+            final String key = e.getKey().toString();
+            // forward user properties, such as the command cache
+            if (key.startsWith("tools4j.cli.") && !key.startsWith("tools4j.cli.cds.")) {
+                cmd.add("-D" + key + "=" + e.getValue());
+            }
+        }
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(CliMain.class.getName());
+        return cmd;
+    }
+
+    /**
+     * Write the java launcher argument file that enable the archive.
+     *
+     * @return the argument file.
+     */
+    static File writeArgs(File archive) throws IOException {
+        final File file = new File(archive.getPath() + ARGS_SUFFIX);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            final String args = "-XX:SharedArchiveFile=" + archive.getPath() + Utils.NEWLINE
+                    + "-Xshare:auto" + Utils.NEWLINE;
+            out.write(utf8(args));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Load everything that an execution of a command load, without executing any
+     * user code. Executed in the JVM that dumps the archive.
+     */
+    static void train() {
+        final PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            // list commands, then the help screen of every command
+            new CliMain(new String[0]).run();
+            final CommandRegistry registry = new CommandRegistry();
+            registry.readClasspath(Thread.currentThread().getContextClassLoader());
+            final Map<String, Command> commands = registry.all();
+            for (Command cmd : commands.values()) {
+                new CliMain(new String[] { cmd.getCommand(), "--help" }).run();
+                if (cmd.getClassName() == null) {
+                    continue;
+                }
+                // load without running static initializers of user code
+                final Class<?> type = Class.forName(cmd.getClassName(), false,
+                        Thread.currentThread().getContextClassLoader());
+                CliDispatcher.get(type);
+            }
+            // commands.xml of jars without an index
+            final StringWriter xml = new StringWriter();
+            XmlCommands.toXml(commands, new PrintWriter(xml));
+            XmlCommands.fromXml(new ByteArrayInputStream(utf8(xml.toString())));
+            // default converters
+            final Conversion c = Conversion.get();
+            c.convert("1", Integer.class);
+            c.convert("true", Boolean.class);
+            c.convert("SECONDS", TimeUnit.class);
+            c.convert(".", File.class);
+            c.convert(1, String.class);
+            GNUishParser.parse(new String[] { "cmd", "-a", "--b", "c", "d" });
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    private static byte[] utf8(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+}
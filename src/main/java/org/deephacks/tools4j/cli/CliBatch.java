@@ -0,0 +1,156 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * CliBatch execute command lines read from a file or standard input in a single
+ * JVM. Commands are read once and command instances are reused between lines,
+ * with options reset to their initial values.
+ * <pre>
+ * $ java -Dtools4j.cli.batch=commands.txt -jar app.jar
+ * $ generate-commands | java -Dtools4j.cli.batch=- -jar app.jar
+ * </pre>
+ * Each line is a command line as given to a shell, see {@link ShellTokenizer}. A line
+ * that ends with a backslash continues on the next line. Blank lines and comments are
+ * skipped.
+ * <p>
+ * Execution stops at the first line that fails, unless the system property
+ * {@value #CONTINUE_PROPERTY} is true. Failures and throughput are reported on
+ * standard error.
+ */
+final class CliBatch {
+    /** system property that name the file to read command lines from, - for stdin */
+    static final String BATCH_PROPERTY = "tools4j.cli.batch";
+    /** system property that keep executing lines after a failure */
+    static final String CONTINUE_PROPERTY = "tools4j.cli.batch.continue";
+
+    private final CommandRegistry commands = new CommandRegistry();
+    private final PrintStream err;
+    private final boolean continueOnFailure;
+    private int executed;
+    private int failed;
+
+    CliBatch(PrintStream err, boolean continueOnFailure) {
+        this.err = err;
+        this.continueOnFailure = continueOnFailure;
+    }
+
+    /**
+     * Execute command lines read from a file, or standard input if the source is -.
+     *
+     * @return true if all lines were executed successfully.
+     */
+    static boolean run(String source) {
+        final CliBatch batch = new CliBatch(System.err, Boolean.getBoolean(CONTINUE_PROPERTY));
+        try {
+            final InputStream in = "-".equals(source) ? System.in : new FileInputStream(source);
+            try {
+                return batch.execute(new InputStreamReader(in, StandardCharsets.UTF_8));
+            } finally {
+                if (in != System.in) {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Execute every command line of the input.
+     *
+     * @return true if all lines were executed successfully.
+     */
+    boolean execute(Reader input) throws IOException {
+        commands.readClasspath(Thread.currentThread().getContextClassLoader());
+        final BufferedReader reader = new BufferedReader(input);
+        final long start = System.nanoTime();
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final int first = ++lineNumber;
+            // backslash newline continue the line
+            while (endsWithEscape(line)) {
+                final String next = reader.readLine();
+                line = line.substring(0, line.length() - 1);
+                if (next == null) {
+                    break;
+                }
+                line += next;
+                lineNumber++;
+            }
+            if (!execute(first, line) && !continueOnFailure) {
+                break;
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        err.println(statistics(elapsed));
+        return failed == 0;
+    }
+
+    /**
+     * @return false if the line failed.
+     */
+    private boolean execute(int lineNumber, String line) {
+        final List<String> args;
+        try {
+            args = ShellTokenizer.tokenize(line);
+        } catch (CliException e) {
+            executed++;
+            return failed(lineNumber, e);
+        }
+        if (args.isEmpty()) {
+            return true;
+        }
+        executed++;
+        try {
+            new CliMain(args.toArray(new String[args.size()]), commands).run();
+            return true;
+        } catch (RuntimeException e) {
+            return failed(lineNumber, e);
+        }
+    }
+
+    private boolean failed(int lineNumber, Exception e) {
+        failed++;
+        err.println("line " + lineNumber + ": " + e);
+        return false;
+    }
+
+    private String statistics(long elapsedNanos) {
+        final double millis = elapsedNanos / 1000000d;
+        final double perSecond = executed == 0 ? 0 : executed / (elapsedNanos / 1000000000d);
+        final double latency = executed == 0 ? 0 : millis / executed;
+        return String.format("Executed %d command lines, %d failed, in %.1f ms "
+                + "(%.1f lines/s, %.3f ms/line)", executed, failed, millis, perSecond, latency);
+    }
+
+    private static boolean endsWithEscape(String line) {
+        int backslashes = 0;
+        for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * CliClient is a thin launcher that forward the command line, working directory,
+ * environment and standard streams to a running {@link CliDaemon} and exit with
+ * the exit code of the command.
+ * <pre>
+ * $ java -cp app.jar org.deephacks.tools4j.cli.CliClient [COMMAND] [OPTIONS...] [ARGUMENTS...]
+ * </pre>
+ * The command is executed in the JVM of the client if no daemon is running.
+ * <p>
+ * Protocol, all numbers big endian and strings as an int length followed by
+ * UTF-8 bytes.
+ * <pre>
+ * client: token, working directory, int env count, [name, value], int arg count, [arg]
+ * client: [byte STDIN, int length, bytes], length -1 means end of stream
+ * daemon: [byte STDOUT or STDERR, int length, bytes], byte EXIT, int exit code
+ * </pre>
+ */
+public final class CliClient {
+    static final byte STDIN = 0;
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 3;
+
+    private CliClient() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final long mainMillis = System.currentTimeMillis();
+        final long mainNanos = System.nanoTime();
+        final Integer exit = execute(CliDaemon.file(true), args, System.in, System.out,
+                System.err);
+        if (exit == null) {
+            new CliMain(args, mainMillis, mainNanos).run();
+            return;
+        }
+        System.exit(exit);
+    }
+
+    /**
+     * Execute a command in the daemon.
+     *
+     * @return exit code of the command or null if the daemon is not running.
+     */
+    static Integer execute(File daemonFile, String[] args, InputStream stdin, PrintStream stdout,
+            PrintStream stderr) throws IOException {
+        final String[] daemon = readDaemonFile(daemonFile);
+        if (daemon == null) {
+            return null;
+        }
+        final Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(daemon[0]));
+        } catch (IOException e) {
+            // daemon is gone, the file is stale
+            return null;
+        }
+        try {
+            return forward(socket, daemon[1], args, stdin, stdout, stderr);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return port and token or null if the daemon file does not exist.
+     */
+    private static String[] readDaemonFile(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            final String port = reader.readLine();
+            final String token = reader.readLine();
+            return port == null || token == null ? null : new String[] { port, token };
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int forward(Socket socket, String token, String[] args,
+            final InputStream stdin, PrintStream stdout, PrintStream stderr) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream()));
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        writeString(out, token);
+        writeString(out, System.getProperty("user.dir"));
+        final Map<String, String> env = System.getenv();
+        out.writeInt(env.size());
+        for (Map.Entry<String, String> e : env.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+        out.writeInt(args.length);
+        for (String arg : args) {
+            writeString(out, arg);
+        }
+        out.flush();
+
+        final Thread pump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pump(stdin, out);
+            }
+        }, "tools4j-cli-stdin");
+        pump.setDaemon(true);
+        pump.start();
+
+        try {
+            while (true) {
+                final byte type = in.readByte();
+                if (type == EXIT) {
+                    return in.readInt();
+                }
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                final PrintStream stream = type == STDOUT ? stdout : stderr;
+                stream.write(bytes);
+                stream.flush();
+            }
+        } catch (EOFException e) {
+            stderr.println("Daemon closed the connection before the command finished.");
+            return 1;
+        }
+    }
+
+    /**
+     * Forward standard input to the daemon until it ends or the daemon is done.
+     */
+    private static void pump(InputStream in, DataOutputStream out) {
+        final byte[] buf = new byte[8192];
+        try {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.writeByte(STDIN);
+                out.writeInt(n);
+                out.write(buf, 0, n);
+                out.flush();
+            }
+            out.writeByte(STDIN);
+            out.writeInt(-1);
+            out.flush();
+        } catch (IOException e) {
+            // command finished, the connection is closed
+        }
+    }
+
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > 1 << 24) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
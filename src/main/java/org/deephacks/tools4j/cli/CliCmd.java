@@ -22,7 +22,8 @@ import java.lang.annotation.Target;
 /**
  * This annotation is used on methods to define it as a command, such as
  * ls, cat, mv, cp, fsck and so on. The command will have the same name as 
- * the method. Any arguments the method define will be treated as command
+ * the method, within the group of the class if it is annotated with
+ * {@link CliGroup}. Any arguments the method define will be treated as command
  * arguments and they will be given to the method from left to right when
  * the command is executed. 
  * 
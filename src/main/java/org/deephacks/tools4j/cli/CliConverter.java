@@ -0,0 +1,37 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+/**
+ * CliConverter is responsible for converting command line values of type V into
+ * arguments and options of type T, for types that the built-in converters do not know.
+ *
+ * Both V and T can be a super class or interface that handles a range of subclasses.
+ * The converter with the most specific target type is used, as long as it recognizes
+ * the source value.
+ *
+ * Converters are registered using the standard java service provider mechanism, by
+ * listing them in a META-INF/services/org.deephacks.tools4j.cli.CliConverter file.
+ * They must have a public no-arg constructor, declare their generic types and be
+ * thread safe.
+ */
+public interface CliConverter<V, T> {
+    /**
+     * @param source The source value to convert.
+     * @param specificType the most specific type that the value should be converted to.
+     * @return A converted object.
+     * @throws IllegalArgumentException if the value cannot be converted.
+     */
+    public T convert(V source, Class<? extends T> specificType);
+}
@@ -0,0 +1,338 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CliDaemon keep commands, converters and command instances in memory and execute
+ * commands on behalf of {@link CliClient}s, which saves the cost of starting a
+ * new JVM and reading commands for every execution.
+ * <p>
+ * The daemon is started by setting the system property {@value #DAEMON_PROPERTY}
+ * to "true", which use {@value #DEFAULT_FILE} in the home directory of the user,
+ * or to a file of choice.
+ * <pre>
+ * $ java -Dtools4j.cli.daemon=true -jar app.jar
+ * </pre>
+ * The daemon listen on a loopback port and write the port and a random token to
+ * the file, readable only by the user. Clients must present the token.
+ * <p>
+ * Each client is served by a thread of its own, but commands are executed one at a
+ * time, since standard streams are redirected to the client for the duration of the
+ * command. A client that is slow to identify itself or to close the connection
+ * does not hold up other clients. Output and exit code are the same as when
+ * the command is executed in its own JVM, except that commands must not call
+ * System.exit and should use {@link CliEnvironment} for the working directory,
+ * environment variables and standard input.
+ */
+final class CliDaemon {
+    /** system property that start the daemon */
+    static final String DAEMON_PROPERTY = "tools4j.cli.daemon";
+    /** daemon file relative to user home */
+    static final String DEFAULT_FILE = ".tools4j-cli/daemon";
+    /** time to wait for a client to identify itself */
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+    /** time the client have to close the connection after a command exit */
+    private static final int CLOSE_TIMEOUT_MS = 10000;
+
+    private final CommandRegistry commands = new CommandRegistry();
+    private final String token = new BigInteger(128, new SecureRandom()).toString(16);
+    /** held while a command is executed */
+    private final Object executing = new Object();
+
+    private CliDaemon() {
+    }
+
+    /**
+     * @return the daemon file or null if the daemon is not enabled.
+     */
+    static File file() {
+        return file(false);
+    }
+
+    /**
+     * @param defaultFile return the default file when the daemon is not enabled.
+     */
+    static File file(boolean defaultFile) {
+        final String value = System.getProperty(DAEMON_PROPERTY);
+        if ("false".equals(value) || (value == null && !defaultFile)) {
+            return null;
+        }
+        if (value == null || "true".equals(value)) {
+            return new File(System.getProperty("user.home"), DEFAULT_FILE);
+        }
+        return new File(value);
+    }
+
+    /**
+     * Serve clients until the JVM is stopped.
+     */
+    static void serve(final File file) {
+        final CliDaemon daemon = new CliDaemon();
+        daemon.commands.readClasspath(Thread.currentThread().getContextClassLoader());
+        try {
+            final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            daemon.writeFile(file, server.getLocalPort());
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    file.delete();
+                }
+            });
+            while (true) {
+                final Socket socket = server.accept();
+                final Thread client = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        daemon.serve(socket);
+                    }
+                }, "tools4j-cli-daemon-client");
+                client.setDaemon(true);
+                client.start();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Serve a client and close the connection.
+     */
+    private void serve(Socket socket) {
+        try {
+            handle(socket);
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Write port and token to a file that only the user can read.
+     */
+    private void writeFile(File file, int port) throws IOException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        Path tmp;
+        try {
+            tmp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions
+                            .fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            tmp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+            tmp.toFile().setReadable(false, false);
+            tmp.toFile().setReadable(true, true);
+        }
+        final String content = port + Utils.NEWLINE + token + Utils.NEWLINE;
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream()));
+        if (!isToken(CliClient.readString(in))) {
+            return;
+        }
+        final File workingDirectory = new File(CliClient.readString(in));
+        final Map<String, String> env = new HashMap<String, String>();
+        for (int i = in.readInt(); i > 0; i--) {
+            env.put(CliClient.readString(in), CliClient.readString(in));
+        }
+        final String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = CliClient.readString(in);
+        }
+        socket.setSoTimeout(0);
+        final Thread stdinReader;
+        synchronized (executing) {
+            stdinReader = execute(in, out, workingDirectory, env, args);
+        }
+        // closing with stdin frames unread reset the connection, which may discard the
+        // exit frame before the client read it. Wait for the client to close first.
+        socket.shutdownOutput();
+        try {
+            stdinReader.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Compare a token presented by a client in time that does not depend on how much
+     * of it is right.
+     */
+    private boolean isToken(String candidate) {
+        return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                candidate.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Execute a command with standard streams redirected to the client and send
+     * the exit code.
+     *
+     * @return thread that copy stdin from the client, which end when the client
+     * close the connection.
+     */
+    private Thread execute(final DataInputStream in, DataOutputStream out,
+            File workingDirectory, Map<String, String> env, String[] args) throws IOException {
+        final PrintStream stdout = new PrintStream(new FrameOutputStream(out, CliClient.STDOUT),
+                true);
+        final PrintStream stderr = new PrintStream(new FrameOutputStream(out, CliClient.STDERR),
+                true);
+        final PipedInputStream stdin = new PipedInputStream(8192);
+        final PipedOutputStream stdinPipe = new PipedOutputStream(stdin);
+        final Thread stdinReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readStdin(in, stdinPipe);
+            }
+        }, "tools4j-cli-daemon-stdin");
+        stdinReader.setDaemon(true);
+        stdinReader.start();
+
+        final PrintStream systemOut = System.out;
+        final PrintStream systemErr = System.err;
+        final InputStream systemIn = System.in;
+        System.setOut(stdout);
+        System.setErr(stderr);
+        System.setIn(stdin);
+        CliEnvironment.set(workingDirectory, env, stdin);
+        int exit = 0;
+        try {
+            new CliMain(args, commands).run();
+        } catch (Throwable e) {
+            // same as an uncaught exception in main
+            exit = 1;
+            stderr.print("Exception in thread \"main\" ");
+            e.printStackTrace(stderr);
+        } finally {
+            CliEnvironment.set(null, null, null);
+            System.setIn(systemIn);
+            System.setErr(systemErr);
+            System.setOut(systemOut);
+            // release the reader if it is blocked on a full pipe
+            stdin.close();
+        }
+        stdout.flush();
+        stderr.flush();
+        synchronized (out) {
+            out.writeByte(CliClient.EXIT);
+            out.writeInt(exit);
+            out.flush();
+        }
+        return stdinReader;
+    }
+
+    /**
+     * Copy stdin frames from the client into the pipe read by the command, until
+     * the client end stdin or close the connection. Frames that arrive after the
+     * command is done are discarded.
+     */
+    private static void readStdin(DataInputStream in, PipedOutputStream pipe) {
+        try {
+            while (in.readByte() == CliClient.STDIN) {
+                final int length = in.readInt();
+                if (length < 0) {
+                    break;
+                }
+                final byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                try {
+                    pipe.write(bytes);
+                    pipe.flush();
+                } catch (IOException e) {
+                    // command is done
+                }
+            }
+        } catch (IOException e) {
+            // client is done
+        } finally {
+            try {
+                pipe.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Send every write to the client as a frame of the given type.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        private FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+                out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.deephacks.tools4j.cli.Conversion.ConversionException;
+import org.deephacks.tools4j.cli.StartupProfile.Phase;
+
+/**
+ * Base class of dispatchers that the AnnotationProcessor generate for classes
+ * that declare commands. A dispatcher create command instances, convert options
+ * and arguments and invoke command methods using direct calls instead of reflection.
+ * <p>
+ * Dispatchers are only generated for classes where the command methods, option
+ * fields and a no-arg constructor are visible within the package. Other classes
+ * are executed through reflection, as before.
+ * <p>
+ * This class is not intended to be extended by hand.
+ */
+public abstract class CliDispatcher {
+    /** suffix appended to the name of the command class */
+    public static final String SUFFIX = "_CliDispatcher";
+    /** handle conversion of command input strings to objects */
+    private static final Conversion c = Conversion.get();
+    /** dispatchers of command classes, null if the class have none */
+    private static final ClassValue<CliDispatcher> DISPATCHERS = new ClassValue<CliDispatcher>() {
+        @Override
+        protected CliDispatcher computeValue(Class<?> type) {
+            try {
+                final Class<?> cls = Class.forName(type.getName() + SUFFIX, true,
+                        type.getClassLoader());
+                return (CliDispatcher) cls.newInstance();
+            } catch (ClassNotFoundException e) {
+                return null;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    protected CliDispatcher() {
+    }
+
+    /**
+     * @return the generated dispatcher of a command class, or null if it have none.
+     */
+    static CliDispatcher get(Class<?> type) {
+        return DISPATCHERS.get(type);
+    }
+
+    /**
+     * @return a new instance of the command class.
+     */
+    protected abstract Object newInstance();
+
+    /**
+     * @return current values of the option fields of an instance.
+     */
+    protected abstract Object[] getOptions(Object instance);
+
+    /**
+     * Set option fields of an instance to values returned by {@link #getOptions(Object)}.
+     */
+    protected abstract void setOptions(Object instance, Object[] values);
+
+    /**
+     * Inject options into the instance and invoke the command method.
+     *
+     * @return false if the command is not declared by the class of the instance.
+     */
+    protected abstract boolean execute(Object instance, Input in) throws Exception;
+
+    /**
+     * Convert an option, if the user provided it.
+     *
+     * @return converted value or null if the option was not provided.
+     */
+    protected static <T> T option(Input in, String shortName, String longName, Class<T> type) {
+        final String value = optionValue(in, shortName, longName);
+        if (value == null) {
+            return null;
+        }
+        final long start = StartupProfile.start();
+        try {
+            return c.convert(value, type);
+        } catch (ConversionException e) {
+            throw CliException.WRONG_OPT_TYPE(longName, type.getName(), value);
+        } finally {
+            StartupProfile.stop(Phase.CONVERSION, start);
+        }
+    }
+
+    /**
+     * Convert the argument at a position, if the user provided it.
+     *
+     * @return converted value or null if there are too few arguments.
+     */
+    protected static <T> T argument(Input in, int position, String name, Class<T> type) {
+        final List<String> args = in.parser.getArgs();
+        if (position >= args.size()) {
+            return null;
+        }
+        final String value = args.get(position);
+        final long start = StartupProfile.start();
+        try {
+            return c.convert(value, type);
+        } catch (ConversionException e) {
+            throw CliException.WRONG_ARG_TYPE(name, type.getName(), value);
+        } finally {
+            StartupProfile.stop(Phase.CONVERSION, start);
+        }
+    }
+
+    /**
+     * @return value of an option as given by the user or null if it was not provided.
+     */
+    protected static String optionValue(Input in, String shortName, String longName) {
+        final String value = in.parser.getShortOpt(shortName);
+        return value != null ? value : in.parser.getLongOpt(longName);
+    }
+
+    /**
+     * @return argument at a position as given by the user or null if there are too
+     * few arguments.
+     */
+    protected static String argumentValue(Input in, int position) {
+        final List<String> args = in.parser.getArgs();
+        return position < args.size() ? args.get(position) : null;
+    }
+
+    /*
+     * Parse values of primitive options and arguments without boxing. A missing
+     * argument, null, is parsed into the default value of the type and reported
+     * by checkArguments. The name is the long name of an option or the name of an
+     * argument.
+     */
+
+    protected static boolean parseBoolean(String value, String name, boolean option) {
+        try {
+            return value != null && Primitives.parseBoolean(value);
+        } catch (ConversionException e) {
+            throw wrongType(value, name, boolean.class, option);
+        }
+    }
+
+    protected static byte parseByte(String value, String name, boolean option) {
+        try {
+            return value == null ? 0 : Primitives.parseByte(value);
+        } catch (ConversionException e) {
+            throw wrongType(value, name, byte.class, option);
+        }
+    }
+
+    protected static short parseShort(String value, String name, boolean option) {
+        try {
+            return value == null ? 0 : Primitives.parseShort(value);
+        } catch (ConversionException e) {
+            throw wrongType(value, name, short.class, option);
+        }
+    }
+
+    protected static int parseInt(String value, String name, boolean option) {
+        try {
+            return value == null ? 0 : Primitives.parseInt(value);
+        } catch (ConversionException e) {
+            throw wrongType(value, name, int.class, option);
+        }
+    }
+
+    protected static long parseLong(String value, String name, boolean option) {
+        try {
+            return value == null ? 0 : Primitives.parseLong(value);
+        } catch (ConversionException e) {
+            throw wrongType(value, name, long.class, option);
+        }
+    }
+
+    protected static float parseFloat(String value, String name, boolean option) {
+        try {
+            return value == null ? 0 : Primitives.parseFloat(value);
+        } catch (ConversionException e) {
+            throw wrongType(value, name, float.class, option);
+        }
+    }
+
+    protected static double parseDouble(String value, String name, boolean option) {
+        try {
+            return value == null ? 0 : Primitives.parseDouble(value);
+        } catch (ConversionException e) {
+            throw wrongType(value, name, double.class, option);
+        }
+    }
+
+    protected static char parseChar(String value, String name, boolean option) {
+        try {
+            return value == null ? 0 : Primitives.parseChar(value);
+        } catch (ConversionException e) {
+            throw wrongType(value, name, char.class, option);
+        }
+    }
+
+    private static CliException wrongType(String value, String name, Class<?> type,
+            boolean option) {
+        return option ? CliException.WRONG_OPT_TYPE(name, type.getName(), value)
+                : CliException.WRONG_ARG_TYPE(name, type.getName(), value);
+    }
+
+    /**
+     * Convert all arguments from a position and onwards into an array, collection or map.
+     *
+     * @param type declared class of the parameter.
+     * @param elements element type of collections, key and value type of maps.
+     */
+    protected static Object arguments(Input in, int from, String name, Class<?> type,
+            Class<?>... elements) {
+        final List<String> args = in.parser.getArgs();
+        final List<String> values = from < args.size() ? args.subList(from, args.size())
+                : Collections.<String>emptyList();
+        final long start = StartupProfile.start();
+        try {
+            return MultiValueType.of(type, elements).convert(values, name, false);
+        } finally {
+            StartupProfile.stop(Phase.CONVERSION, start);
+        }
+    }
+
+    /**
+     * Convert every value of an option into an array, collection or map.
+     *
+     * @return converted values or null if the option was not provided.
+     */
+    protected static Object options(Input in, String shortName, String longName,
+            Class<?> type, Class<?>... elements) {
+        final List<String> values = in.parser.getOptValues(shortName, longName);
+        if (values.isEmpty()) {
+            return null;
+        }
+        final long start = StartupProfile.start();
+        try {
+            return MultiValueType.of(type, elements).convert(values, longName, true);
+        } finally {
+            StartupProfile.stop(Phase.CONVERSION, start);
+        }
+    }
+
+    /**
+     * @return all arguments from a position and onwards.
+     */
+    protected static String[] varargs(Input in, int from) {
+        final List<String> args = in.parser.getArgs();
+        if (from >= args.size()) {
+            return new String[0];
+        }
+        return args.subList(from, args.size()).toArray(new String[0]);
+    }
+
+    /**
+     * @return lines of standard input, or of the file given at the position of the
+     * argument, converted to a type as they are iterated.
+     */
+    protected static Iterator<?> lines(Input in, int position, String name, Class<?> type) {
+        return InputLines.open(argumentValue(in, position), type, name);
+    }
+
+    /**
+     * Stop reading input lines that the command did not consume.
+     */
+    protected static void close(Iterator<?> lines) {
+        InputLines.close(lines);
+    }
+
+    /**
+     * Check that the user provided as many arguments as the command method declare.
+     */
+    protected static void checkArguments(Input in, int count, boolean varargs) {
+        checkArguments(in, count, varargs ? Integer.MAX_VALUE : count);
+    }
+
+    /**
+     * Check that the user provided between min and max arguments.
+     */
+    protected static void checkArguments(Input in, int min, int max) {
+        final int size = in.parser.getArgs().size();
+        if (size < min || size > max) {
+            throw new IllegalArgumentException("wrong number of arguments");
+        }
+    }
+
+    /**
+     * Validate options if Bean Validation is available on classpath.
+     */
+    protected static void validateOpts(Object instance) {
+        Utils.validateOpts(instance);
+    }
+
+    /**
+     * @return true if arguments are validated, which is when Bean Validation 1.1 is
+     * available on classpath.
+     */
+    protected static boolean validatesArgs() {
+        return Utils.validatesArgs();
+    }
+
+    /**
+     * Validate arguments if Bean Validation 1.1 is available on classpath.
+     *
+     * @param method command method that the arguments are given to.
+     */
+    protected static void validateArgs(Input in, Object instance, Method method, Object[] args) {
+        Utils.validateArgs(Arrays.asList(args), instance, method, in.command);
+    }
+
+    /**
+     * @return a command method declared by a class, which Bean Validation need in
+     * order to validate its arguments.
+     */
+    protected static Method method(Class<?> type, String name, Class<?>... params) {
+        try {
+            return type.getDeclaredMethod(name, params);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the name of the method of the command requested by the user, without
+     * its group.
+     */
+    protected static String command(Input in) {
+        return in.command.getMethodName();
+    }
+
+    /**
+     * User input of a command execution.
+     */
+    public static final class Input {
+        private final GNUishParser parser;
+        private final Command command;
+
+        Input(GNUishParser parser, Command command) {
+            this.parser = parser;
+            this.command = command;
+        }
+    }
+}
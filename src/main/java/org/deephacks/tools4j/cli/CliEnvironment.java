@@ -0,0 +1,86 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * CliEnvironment give commands access to the working directory, environment
+ * variables and standard input of the user that executes the command.
+ * <p>
+ * These are the same as those of the JVM, except when a command is executed by
+ * the daemon on behalf of a client. A JVM cannot change its working directory, so
+ * commands that resolve relative paths or read environment variables should use
+ * this class in order to behave the same in both cases.
+ */
+public final class CliEnvironment {
+    /** working directory, environment and stdin of the client being served, if any */
+    private static volatile File workingDirectory;
+    private static volatile Map<String, String> env;
+    private static volatile InputStream in;
+
+    private CliEnvironment() {
+    }
+
+    /**
+     * @return working directory of the user.
+     */
+    public static File getWorkingDirectory() {
+        final File dir = workingDirectory;
+        return dir != null ? dir : new File(System.getProperty("user.dir"));
+    }
+
+    /**
+     * Resolve a path relative to the working directory of the user.
+     */
+    public static File resolve(String path) {
+        final File file = new File(path);
+        return file.isAbsolute() ? file : new File(getWorkingDirectory(), path);
+    }
+
+    /**
+     * @return environment variables of the user.
+     */
+    public static Map<String, String> getEnv() {
+        final Map<String, String> values = env;
+        return values != null ? values : System.getenv();
+    }
+
+    /**
+     * @return value of an environment variable or null if it is not set.
+     */
+    public static String getEnv(String name) {
+        return getEnv().get(name);
+    }
+
+    /**
+     * @return standard input of the user.
+     */
+    public static InputStream getIn() {
+        final InputStream stdin = in;
+        return stdin != null ? stdin : System.in;
+    }
+
+    /**
+     * Act on behalf of a client, null restore the environment of the JVM.
+     */
+    static void set(File workingDirectory, Map<String, String> env, InputStream in) {
+        CliEnvironment.workingDirectory = workingDirectory;
+        CliEnvironment.env = env == null ? null : Collections.unmodifiableMap(env);
+        CliEnvironment.in = in;
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation is used on classes to put their commands in a group, such as
+ * db in "tool db migrate". The user give the name of the group followed by the
+ * name of the command, which makes it possible for classes of a large tool suite
+ * to declare commands with the same name.
+ * 
+ * Groups nest: a class declared inside a grouped class belong to a group within
+ * the group of the enclosing class. The name may also give several levels at once,
+ * separated by spaces, like "db schema".
+ * 
+ * Only the metadata of the command that the user ask for is read, commands of other
+ * groups are left untouched.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.TYPE })
+public @interface CliGroup {
+    /**
+     * name of the group, levels separated by spaces
+     */
+    String value();
+}
@@ -13,41 +13,94 @@
  */
 package org.deephacks.tools4j.cli;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.io.File;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.deephacks.tools4j.cli.Command.XmlCommands;
+import org.deephacks.tools4j.cli.StartupProfile.Phase;
 
 /**
  * This is the central class used to execute commands.  
  */
 public final class CliMain {
     /** commands available */
-    private final Map<String, Command> commands = new HashMap<String, Command>();
+    private final CommandRegistry commands;
+    /** false if the commands have been read from classpath already */
+    private final boolean readClasspath;
     /** cli command parser */
     private GNUishParser p;
     /** raw terminal arguments */
     private String[] terminalArgs;
+    /** wall clock and nano time when main was entered, 0 if not started by main */
+    private long mainMillis;
+    private long mainNanos;
 
     /**
      * Executed when the user runs: 
      * 
      * $ java -jar tools4j-cli.jar
      * 
-     * @param args command arguments 
+     * @param args command arguments
+     * @see CdsArchive
+     * @see CliDaemon
+     * @see CliBatch
      */
     public static void main(String[] args) {
-        CliMain main = new CliMain(args);
+        // taken first, so that the profile see the time spent in main as such
+        final long mainMillis = System.currentTimeMillis();
+        final long mainNanos = System.nanoTime();
+        final String archive = System.getProperty(CdsArchive.DUMP_PROPERTY);
+        if (archive != null) {
+            CdsArchive.dump(new File(archive));
+            return;
+        }
+        if (Boolean.getBoolean(CdsArchive.TRAINING_PROPERTY)) {
+            CdsArchive.train();
+            return;
+        }
+        final String batch = System.getProperty(CliBatch.BATCH_PROPERTY);
+        if (batch != null) {
+            if (!CliBatch.run(batch)) {
+                System.exit(1);
+            }
+            return;
+        }
+        final File daemon = CliDaemon.file();
+        if (daemon != null) {
+            CliDaemon.serve(daemon);
+            return;
+        }
+        CliMain main = new CliMain(args, mainMillis, mainNanos);
         main.run();
     }
 
     public CliMain(String terminalArgs[]) {
         this.terminalArgs = terminalArgs;
+        this.commands = new CommandRegistry();
+        this.readClasspath = true;
+    }
+
+    /**
+     * Execute a command on behalf of main.
+     *
+     * @param mainMillis wall clock time when main was entered.
+     * @param mainNanos nano time when main was entered.
+     */
+    CliMain(String terminalArgs[], long mainMillis, long mainNanos) {
+        this(terminalArgs);
+        this.mainMillis = mainMillis;
+        this.mainNanos = mainNanos;
+    }
+
+    /**
+     * Execute commands of a registry that has read the classpath already, reusing
+     * command metadata and instances between executions.
+     */
+    CliMain(String terminalArgs[], CommandRegistry commands) {
+        this.terminalArgs = terminalArgs;
+        this.commands = commands;
+        this.readClasspath = false;
     }
 
     /**
@@ -58,7 +111,7 @@ public final class CliMain {
         final List<Command> cmds = Command.create(command);
         for (Command cmd : cmds) {
             cmd.setInstance(command);
-            commands.put(cmd.getCommand(), cmd);
+            commands.register(cmd);
         }
         run();
     }
@@ -71,17 +124,80 @@ public final class CliMain {
      * library or user commands will fall through and thrown from this method. 
      */
     public void run() throws RuntimeException {
+        final long parseStart = System.nanoTime();
+        // the JVM was started by the caller of run if not by main
+        final long mainMillis = this.mainMillis > 0 ? this.mainMillis : System.currentTimeMillis();
         if (terminalArgs == null) {
             terminalArgs = new String[0];
         }
-        p = GNUishParser.parse(terminalArgs);
-        readCommands();
+        p = GNUishParser.parseCommand(terminalArgs);
+        try {
+            // options are parsed according to the command, which is read first
+            final long readStart = System.nanoTime();
+            if (readClasspath) {
+                commands.readClasspath(Thread.currentThread().getContextClassLoader());
+            }
+            final Command cmd = resolve();
+            final long readStop = System.nanoTime();
+            p.parseOpts(cmd != null ? cmd.getOptionSpec() : GNUishParser.OptionSpec.NONE);
+            if (p.profileStartup()) {
+                // the JVM was started for an earlier command if the registry is reused
+                StartupProfile.enable(readClasspath ? mainMillis : 0);
+                if (this.mainMillis > 0) {
+                    StartupProfile.record(Phase.MAIN, parseStart - mainNanos);
+                }
+                StartupProfile.record(Phase.PARSE, readStart - parseStart + System.nanoTime()
+                        - readStop);
+                StartupProfile.record(Phase.READ_COMMANDS, readStop - readStart);
+            }
+            try {
+                execute(cmd);
+            } finally {
+                StartupProfile.print(System.err);
+            }
+        } finally {
+            // the parser is reused by the next command line parsed by this thread
+            p.release();
+        }
+    }
+
+    /**
+     * Resolve the command a word at a time, as long as the words name a group
+     * of commands. Only the metadata of the command found is read.
+     *
+     * @return the command or null if there is no such command.
+     */
+    private Command resolve() {
         if (p.getCommand() == null || "".equals(p.getCommand())) {
-            Utils.printAvailableCommandsHelp(commands);
-            return;
+            return null;
         }
+        Command cmd = commands.get(p.getCommand());
+        while (cmd == null && commands.isGroup(p.getCommand()) && p.nextCommandWord()) {
+            cmd = commands.get(p.getCommand());
+        }
+        return cmd;
+    }
 
-        final Command cmd = commands.get(p.getCommand());
+    private void execute(Command cmd) {
+        if (p.getCommand() == null || "".equals(p.getCommand())) {
+            final long start = StartupProfile.start();
+            final Map<String, Command> all = commands.all();
+            StartupProfile.stop(Phase.READ_COMMANDS, start);
+            Utils.printAvailableCommandsHelp(all);
+            return;
+        }
+        if (cmd == null && commands.isGroup(p.getCommand())) {
+            final long start = StartupProfile.start();
+            final Map<String, Command> group = new LinkedHashMap<String, Command>();
+            for (Command c : commands.all().values()) {
+                if (CommandRegistry.inGroup(c.getCommand(), p.getCommand())) {
+                    group.put(c.getCommand(), c);
+                }
+            }
+            StartupProfile.stop(Phase.READ_COMMANDS, start);
+            Utils.printAvailableCommandsHelp(group);
+            return;
+        }
         if (cmd == null) {
             throw CliException.COMMAND_NOT_FOUND(p.getCommand());
         }
@@ -101,23 +217,4 @@ public final class CliMain {
         }
     }
 
-    /**
-     * Find all commands available on classpath.
-     */
-    private void readCommands() {
-        try {
-            final Enumeration<URL> urls = Thread.currentThread().getContextClassLoader()
-                    .getResources(XmlCommands.FILEPATH);
-            while (urls.hasMoreElements()) {
-                URL url = urls.nextElement();
-                InputStream in = url.openStream();
-                for (Command command : XmlCommands.fromXml(in)) {
-                    commands.put(command.getCommand(), command);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
 }
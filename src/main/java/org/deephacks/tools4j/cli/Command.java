@@ -14,6 +14,8 @@
 package org.deephacks.tools4j.cli;
 
 import org.deephacks.tools4j.cli.Conversion.ConversionException;
+import org.deephacks.tools4j.cli.GNUishParser.OptionSpec;
+import org.deephacks.tools4j.cli.StartupProfile.Phase;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -25,13 +27,13 @@ import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -72,10 +74,31 @@ final class Command {
    */
   @XmlElement(name = "arg")
   private List<Argument> arguments = new ArrayList<Argument>();
+  /**
+   * true if options carry Bean Validation constraints, null if not known
+   */
+  @XmlAttribute(name = "constrained-opts")
+  private Boolean constrainedOpts;
+  /**
+   * true if arguments carry Bean Validation constraints, null if not known
+   */
+  @XmlAttribute(name = "constrained-args")
+  private Boolean constrainedArgs;
   /**
    * the object instance that will execute the command
    */
   private Object instance;
+  /**
+   * initial option values of an instance created by this command, which are
+   * restored before the instance is reused.
+   */
+  @XmlTransient
+  private Object[] optionDefaults;
+  /**
+   * options compiled into a lookup table for the parser, built on first use.
+   */
+  @XmlTransient
+  private OptionSpec optionSpec;
 
   public Command() {
 
@@ -90,17 +113,46 @@ final class Command {
       if (anno == null) {
         continue;
       }
-      final String cmdname = m.getName();
+      final String cmdname = path(groupOf(cmdClazz), m.getName());
       final Command cmd = new Command(cmdname, cmdClazz.getName(), "n/a");
       int i = 0;
       for (Class<?> cls : m.getParameterTypes()) {
         cmd.addArgument(new Argument("n/a", cls.getName(), i++, "n/a"));
       }
+      for (CommandBinding.OptionField f : CommandBinding.get(cmdClazz).options()) {
+        cmd.addOptions(new Option(f.shortName, f.longName, "n/a", Option.isFlag(f.type)));
+      }
       commands.add(cmd);
     }
     return commands;
   }
 
+  /**
+   * @return the group of the commands of a class, including groups of enclosing
+   * classes, or null if they are not grouped.
+   */
+  static String groupOf(Class<?> type) {
+    String group = null;
+    for (Class<?> cls = type; cls != null; cls = cls.getEnclosingClass()) {
+      final CliGroup anno = cls.getAnnotation(CliGroup.class);
+      if (anno != null) {
+        group = path(anno.value(), group);
+      }
+    }
+    return group;
+  }
+
+  /**
+   * @return a group and a name joined into a path, levels separated by a space.
+   */
+  static String path(String group, String name) {
+    if (group == null || group.trim().isEmpty()) {
+      return name;
+    }
+    final String levels = group.trim().replaceAll("\\s+", " ");
+    return name == null ? levels : levels + " " + name;
+  }
+
   public Command(String cmd, String className, String doc) {
     this.cmd = cmd;
     this.className = className;
@@ -118,6 +170,21 @@ final class Command {
     return cmd;
   }
 
+  /**
+   * @return name of the method that execute this command, the last level of
+   * its path.
+   */
+  public String getMethodName() {
+    return cmd.substring(cmd.lastIndexOf(' ') + 1);
+  }
+
+  /**
+   * @return name of the class that declare this command.
+   */
+  public String getClassName() {
+    return className;
+  }
+
   /**
    * @return raw the documentation of the command, as read from commands.xml.
    */
@@ -155,6 +222,54 @@ final class Command {
     return options;
   }
 
+  /**
+   * @return the options of this command compiled for the parser.
+   */
+  OptionSpec getOptionSpec() {
+    if (optionSpec == null) {
+      optionSpec = OptionSpec.of(options);
+    }
+    return optionSpec;
+  }
+
+  /**
+   * Record whether options and arguments carry Bean Validation constraints, which
+   * is found out by the AnnotationProcessor. Commands that are not constrained are
+   * not validated.
+   */
+  public void setConstrained(boolean opts, boolean args) {
+    this.constrainedOpts = opts;
+    this.constrainedArgs = args;
+  }
+
+  /**
+   * @return true if options carry constraints, null if not known.
+   */
+  public Boolean getConstrainedOpts() {
+    return constrainedOpts;
+  }
+
+  /**
+   * @return true if arguments carry constraints, null if not known.
+   */
+  public Boolean getConstrainedArgs() {
+    return constrainedArgs;
+  }
+
+  /**
+   * @return false if options are known to carry no constraints.
+   */
+  boolean validatesOpts() {
+    return constrainedOpts == null || constrainedOpts;
+  }
+
+  /**
+   * @return false if arguments are known to carry no constraints.
+   */
+  boolean validatesArgs() {
+    return constrainedArgs == null || constrainedArgs;
+  }
+
   /**
    * @param o instance that will handle this command.
    */
@@ -167,102 +282,181 @@ final class Command {
    * parsed by the parser.
    */
   public void execute(GNUishParser p) {
+    final CliDispatcher dispatcher;
+    final long start = StartupProfile.start();
     if (instance == null) {
-      instance = Utils.newInstance(className);
+      final Class<?> type = Utils.loadClass(className);
+      dispatcher = CliDispatcher.get(type);
+      instance = dispatcher != null ? dispatcher.newInstance() : Utils.newInstance(type);
+      captureOptionDefaults(dispatcher);
+    } else {
+      dispatcher = CliDispatcher.get(instance.getClass());
+      restoreOptionDefaults(dispatcher);
     }
-    final Class<?> clazz = instance.getClass();
-    final Method[] methods = clazz.getDeclaredMethods();
-    for (Method m : methods) {
-      m.setAccessible(true);
-      if (!m.getName().equals(p.getCommand())) {
-        continue;
+    StartupProfile.stop(Phase.NEW_INSTANCE, start);
+    if (dispatcher != null && dispatch(dispatcher, p)) {
+      return;
+    }
+    final CommandBinding binding = CommandBinding.get(instance.getClass());
+    final CommandBinding.Target target = binding.target(getMethodName());
+    if (target == null) {
+      System.out.println(p.getCommand() + ": command not found");
+      return;
+    }
+    final long conversion = StartupProfile.start();
+    final List<Object> args = adjustArgs(p.getArgs(), target);
+    try {
+      injectOpts(p, binding);
+      StartupProfile.stop(Phase.CONVERSION, conversion);
+      if (validatesArgs()) {
+        validateArgs(args, instance, target.method, this);
       }
-      final List<Object> args = adjustArgs(p.getArgs(), m);
-      injectOpts(p, clazz);
+      final long invoke = StartupProfile.start();
       try {
-        validateArgs(args, instance, m, this);
-        m.invoke(instance, args.toArray());
-        return;
-      } catch (InvocationTargetException e) {
-        final Throwable ex = e.getTargetException();
-        if (ex instanceof RuntimeException) {
-          throw (RuntimeException) e.getCause();
-        } else {
-          throw new RuntimeException(e.getTargetException());
-        }
-      } catch (RuntimeException e) {
-        throw e;
-      } catch (Exception e) {
-        throw new RuntimeException(e);
+        target.invoke(instance, args.toArray());
+      } finally {
+        StartupProfile.stop(Phase.INVOKE, invoke);
+      }
+    } finally {
+      if (!args.isEmpty()) {
+        // stop reading input lines the command did not consume
+        InputLines.close(args.get(args.size() - 1));
       }
     }
-    System.out.println(p.getCommand() + ": command not found");
+  }
+
+  /**
+   * Execute this command using a generated dispatcher.
+   *
+   * @return false if the dispatcher does not know about the command.
+   */
+  private boolean dispatch(CliDispatcher dispatcher, GNUishParser p) {
+    // conversion and validation done by the dispatcher are measured separately
+    final long start = StartupProfile.start();
+    try {
+      return dispatcher.execute(instance, new CliDispatcher.Input(p, this));
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    } finally {
+      StartupProfile.stop(Phase.INVOKE, start);
+    }
+  }
+
+  /**
+   * Remember option values of a new instance, so that options that are not given
+   * when the instance is reused get their initial value rather than the value of
+   * a previous execution.
+   *
+   * @param dispatcher generated dispatcher of the instance, null if it have none.
+   */
+  private void captureOptionDefaults(CliDispatcher dispatcher) {
+    if (dispatcher != null) {
+      optionDefaults = dispatcher.getOptions(instance);
+    } else {
+      optionDefaults = CommandBinding.get(instance.getClass()).getOptions(instance);
+    }
+  }
 
+  /**
+   * Restore option values of an instance created by this command. Instances
+   * registered by the user are left as they are.
+   *
+   * @param dispatcher generated dispatcher of the instance, null if it have none.
+   */
+  private void restoreOptionDefaults(CliDispatcher dispatcher) {
+    if (optionDefaults == null) {
+      return;
+    }
+    if (dispatcher != null) {
+      dispatcher.setOptions(instance, optionDefaults);
+    } else {
+      CommandBinding.get(instance.getClass()).setOptions(instance, optionDefaults);
+    }
   }
 
   /**
    * Convert options to appropriate type and inject them into
    * the command instance.
    */
-  private void injectOpts(GNUishParser p, Class<?> clazz) {
-    for (Field f : clazz.getDeclaredFields()) {
-      f.setAccessible(true);
-      final CliOption anno = f.getAnnotation(CliOption.class);
-      if (anno == null) {
+  private void injectOpts(GNUishParser p, CommandBinding binding) {
+    for (CommandBinding.OptionField f : binding.options()) {
+      if (f.multi != null) {
+        final List<String> values = p.getOptValues(f.shortName, f.longName);
+        if (!values.isEmpty()) {
+          f.set(instance, f.multi.convert(values, f.longName, true));
+        }
         continue;
       }
-      String value = p.getShortOpt(anno.shortName());
+      String value = p.getShortOpt(f.shortName);
       if (value == null) {
-        value = p.getLongOpt(f.getName());
+        value = p.getLongOpt(f.longName);
         if (value == null) {
           continue;
         }
       }
       try {
-        f.set(instance, c.convert(value, f.getType()));
+        f.inject(instance, value);
       } catch (ConversionException e) {
-        throw CliException.WRONG_OPT_TYPE(f.getName(), f.getType().getName(), value);
-      } catch (Exception e) {
-        throw new RuntimeException(e);
+        throw CliException.WRONG_OPT_TYPE(f.longName, f.type.getName(), value);
       }
     }
-    validateOpts(instance);
+    if (validatesOpts()) {
+      validateOpts(instance);
+    }
   }
 
   /**
-   * Add or remove parameters to fit the method declaration and also convert them
-   * to appropriate data type.
+   * Convert arguments to the parameter types of the command method. The last
+   * parameter take all remaining arguments if it take multiple values, or the
+   * lines of standard input or a file if it is an Iterator.
    */
-  private List<Object> adjustArgs(List<String> args, Method m) {
-    final List<Object> result = new ArrayList<Object>();
-    final Class<?>[] types = m.getParameterTypes();
-    if (m.isVarArgs()) {
-      types[types.length - 1] = types[types.length - 1].getComponentType();
-      if (!String.class.isAssignableFrom(types[types.length - 1])) {
-        throw new CliException("Only String varargs is supported.");
+  private List<Object> adjustArgs(List<String> args, CommandBinding.Target m) {
+    final Class<?>[] types = m.types;
+    final List<Object> result = new ArrayList<Object>(types.length);
+    for (int i = 0; i < types.length; i++) {
+      if (m.lines[i] != null) {
+        if (i != types.length - 1) {
+          throw new CliException("Only the last argument can read input lines.");
+        }
+        if (args.size() > types.length) {
+          // too many arguments are reported when the method is invoked
+          result.addAll(args.subList(i, args.size()));
+          return result;
+        }
+        // an optional file or "-", standard input by default
+        result.add(InputLines.open(i < args.size() ? args.get(i) : null, m.lines[i],
+                argumentName(i)));
+        return result;
       }
-      types[types.length - 1] = String.class;
-    }
-
-    List<Object> varargs = new ArrayList<>();
-    for (int i = 0; i < args.size(); i++) {
-      try {
-        if (m.isVarArgs() && i >= types.length - 1) {
-          varargs.add(c.convert(args.get(i), types[types.length - 1]));
-        } else {
-          result.add(c.convert(args.get(i), types[i]));
+      if (m.multi[i] != null) {
+        if (i != types.length - 1) {
+          throw new CliException("Only the last argument can take multiple values.");
         }
+        final List<String> values = i < args.size() ? args.subList(i, args.size())
+                : Collections.<String>emptyList();
+        result.add(m.multi[i].convert(values, argumentName(i), false));
+        return result;
+      }
+      if (i >= args.size()) {
+        return result;
+      }
+      try {
+        result.add(c.convert(args.get(i), types[i]));
       } catch (ConversionException e) {
-        throw CliException.WRONG_ARG_TYPE(getArguments().get(i).getName(),
-                types[i].getName(), args.get(i));
+        throw CliException.WRONG_ARG_TYPE(argumentName(i), types[i].getName(), args.get(i));
       }
     }
-    if (m.isVarArgs()) {
-      result.add(varargs.toArray(new String[0]));
-    }
+    // too many arguments are reported when the method is invoked
+    result.addAll(args.subList(types.length, args.size()));
     return result;
   }
 
+  private String argumentName(int position) {
+    return position < arguments.size() ? arguments.get(position).getName() : "n/a";
+  }
+
   public String toString() {
     return cmd + " " + className + " " + doc + " " + options + " " + arguments;
   }
@@ -287,12 +481,21 @@ final class Command {
      */
     @XmlElement(name = "doc")
     private String doc;
+    /**
+     * true if this option take no value, null if not known
+     */
+    @XmlAttribute(name = "flag")
+    private Boolean flag;
 
     public Option() {
 
     }
 
     public Option(String shortName, String longName, String doc) {
+      this(shortName, longName, doc, null);
+    }
+
+    public Option(String shortName, String longName, String doc, Boolean flag) {
       this.shortName = shortName;
       this.longName = longName;
       if (doc == null) {
@@ -300,7 +503,14 @@ final class Command {
       } else {
         this.doc = doc;
       }
+      this.flag = flag;
+    }
 
+    /**
+     * @return true if options of the class are given without a value.
+     */
+    static boolean isFlag(Class<?> type) {
+      return type == boolean.class || type == Boolean.class;
     }
 
     public String getShortName() {
@@ -315,6 +525,13 @@ final class Command {
       return doc;
     }
 
+    /**
+     * @return true if this option take no value, null if not known.
+     */
+    public Boolean getFlag() {
+      return flag;
+    }
+
     public String toString() {
       return shortName + " " + longName + " " + doc;
     }
@@ -359,6 +576,14 @@ final class Command {
       }
     }
 
+    public String getTypeName() {
+      return type;
+    }
+
+    public int getPosition() {
+      return position;
+    }
+
     public String getName() {
       return name;
     }
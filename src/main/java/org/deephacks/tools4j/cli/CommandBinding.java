@@ -0,0 +1,273 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CommandBinding is responsible for executing commands of classes that have no
+ * generated {@link CliDispatcher}. The command methods and option fields of a class,
+ * including option fields declared by superclasses, are looked up once and bound
+ * to method handles that are cached for the lifetime of the class. Repeated
+ * executions, such as in batch or daemon mode, only pay for the calls themselves.
+ */
+final class CommandBinding {
+    private static final ClassValue<CommandBinding> BINDINGS = new ClassValue<CommandBinding>() {
+        @Override
+        protected CommandBinding computeValue(Class<?> type) {
+            return new CommandBinding(type);
+        }
+    };
+    /** (Object, Object[])void, the type of bound command methods */
+    private static final MethodType INVOKE_TYPE = MethodType.methodType(void.class,
+            Object.class, Object[].class);
+    /** (Object, Object)void, the type of bound option setters */
+    private static final MethodType SET_TYPE = MethodType.methodType(void.class, Object.class,
+            Object.class);
+    /** (Object)Object, the type of bound option getters */
+    private static final MethodType GET_TYPE = MethodType.methodType(Object.class,
+            Object.class);
+    /** (Object, String)void, the type of bound primitive option parsers */
+    private static final MethodType PARSE_TYPE = MethodType.methodType(void.class,
+            Object.class, String.class);
+    /** handle conversion of command input strings to objects */
+    private static final Conversion c = Conversion.get();
+
+    /** command methods by name */
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+    private final OptionField[] options;
+
+    private CommandBinding(Class<?> type) {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            for (Method m : type.getDeclaredMethods()) {
+                final Target existing = targets.get(m.getName());
+                // annotated methods take precedence over overloads that are not commands
+                if (existing == null || (existing.method.getAnnotation(CliCmd.class) == null
+                        && m.getAnnotation(CliCmd.class) != null)) {
+                    m.setAccessible(true);
+                    targets.put(m.getName(), new Target(m, lookup.unreflect(m).asFixedArity()));
+                }
+            }
+            final List<OptionField> fields = new ArrayList<OptionField>();
+            for (Class<?> cls = type; cls != null && cls != Object.class; cls = cls
+                    .getSuperclass()) {
+                for (Field f : cls.getDeclaredFields()) {
+                    final CliOption anno = f.getAnnotation(CliOption.class);
+                    if (anno != null) {
+                        f.setAccessible(true);
+                        fields.add(new OptionField(f, anno.shortName(), lookup));
+                    }
+                }
+            }
+            options = fields.toArray(new OptionField[fields.size()]);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the binding of a class.
+     */
+    static CommandBinding get(Class<?> type) {
+        return BINDINGS.get(type);
+    }
+
+    /**
+     * @return the method that execute a command, or null if the class have none.
+     */
+    Target target(String command) {
+        return targets.get(command);
+    }
+
+    /**
+     * @return option fields of the class and its superclasses.
+     */
+    OptionField[] options() {
+        return options;
+    }
+
+    /**
+     * @return current values of the option fields of an instance, null for fields
+     * that cannot be written.
+     */
+    Object[] getOptions(Object instance) {
+        final Object[] values = new Object[options.length];
+        for (int i = 0; i < options.length; i++) {
+            if (options[i].writable) {
+                values[i] = options[i].get(instance);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Set option fields of an instance to values returned by {@link #getOptions(Object)}.
+     * Fields that cannot be written are skipped, they always have their initial value.
+     */
+    void setOptions(Object instance, Object[] values) {
+        for (int i = 0; i < options.length; i++) {
+            if (options[i].writable) {
+                options[i].set(instance, values[i]);
+            }
+        }
+    }
+
+    /**
+     * Rethrow a throwable raised by a bound method as an unchecked exception.
+     */
+    private static RuntimeException propagate(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        return new RuntimeException(e);
+    }
+
+    /**
+     * A command method bound to a method handle.
+     */
+    static final class Target {
+        final Method method;
+        final Class<?>[] types;
+        /** parameters that take multiple values, null for single valued parameters */
+        final MultiValueType[] multi;
+        /** element types of Iterator parameters fed with input lines, null for others */
+        final Class<?>[] lines;
+        private final MethodHandle handle;
+
+        private Target(Method method, MethodHandle handle) {
+            this.method = method;
+            this.types = method.getParameterTypes();
+            final Type[] generic = method.getGenericParameterTypes();
+            this.multi = new MultiValueType[types.length];
+            this.lines = new Class<?>[types.length];
+            // generic types may omit synthetic parameters of inner class constructors
+            if (generic.length == types.length) {
+                for (int i = 0; i < types.length; i++) {
+                    multi[i] = MultiValueType.of(types[i], generic[i]);
+                    lines[i] = InputLines.elementOf(types[i], generic[i]);
+                }
+            }
+            if (Modifier.isStatic(method.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            this.handle = handle.asSpreader(Object[].class, types.length).asType(INVOKE_TYPE);
+        }
+
+        /**
+         * Invoke the command method.
+         */
+        void invoke(Object instance, Object[] args) {
+            if (args.length != types.length) {
+                throw new IllegalArgumentException("wrong number of arguments");
+            }
+            try {
+                handle.invokeExact(instance, args);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+    }
+
+    /**
+     * An option field bound to getter and setter method handles.
+     */
+    static final class OptionField {
+        final String shortName;
+        final String longName;
+        final Class<?> type;
+        /** null if the option take a single value */
+        final MultiValueType multi;
+        /** false for static final fields, that fail when the option is given */
+        final boolean writable;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+        /** parse and set primitive values without boxing, null for other types */
+        private final MethodHandle parser;
+
+        private OptionField(Field field, String shortName, MethodHandles.Lookup lookup)
+                throws IllegalAccessException {
+            this.shortName = shortName;
+            this.longName = field.getName();
+            this.type = field.getType();
+            this.multi = MultiValueType.of(type, field.getGenericType());
+            MethodHandle getter = lookup.unreflectGetter(field);
+            MethodHandle setter;
+            boolean writable = true;
+            try {
+                setter = lookup.unreflectSetter(field);
+            } catch (IllegalAccessException e) {
+                writable = false;
+                // static final fields, fail when an option is actually given
+                setter = MethodHandles.throwException(void.class, IllegalAccessException.class)
+                        .bindTo(e);
+                setter = MethodHandles.dropArguments(setter, 0, field.getType());
+            }
+            if (Modifier.isStatic(field.getModifiers())) {
+                getter = MethodHandles.dropArguments(getter, 0, Object.class);
+                setter = MethodHandles.dropArguments(setter, 0, Object.class);
+            }
+            this.writable = writable;
+            this.getter = getter.asType(GET_TYPE);
+            this.setter = setter.asType(SET_TYPE);
+            if (type.isPrimitive()) {
+                this.parser = MethodHandles.filterArguments(setter, 1,
+                        Primitives.parser(type)).asType(PARSE_TYPE);
+            } else {
+                this.parser = null;
+            }
+        }
+
+        /**
+         * Convert a value given by the user and set it on the instance.
+         */
+        void inject(Object instance, String value) {
+            if (parser == null) {
+                set(instance, c.convert(value, type));
+                return;
+            }
+            try {
+                parser.invokeExact(instance, value);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        Object get(Object instance) {
+            try {
+                return (Object) getter.invokeExact(instance);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        void set(Object instance, Object value) {
+            try {
+                setter.invokeExact(instance, value);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.deephacks.tools4j.cli.Command.XmlCommands;
+
+/**
+ * CommandCache store the merged commands of all jars on the classpath in a single
+ * file, which allow a warm start to map one file instead of looking through every
+ * jar on the classpath.
+ * <p>
+ * The cache is disabled by default and enabled by setting the system property
+ * {@value #CACHE_PROPERTY} to "true", which use {@value #DEFAULT_DIR} in the
+ * home directory of the user, or to a directory of choice.
+ * <p>
+ * The file name is derived from the classpath entries. The file itself contain the
+ * path, size and modification time of every entry and is rebuilt when any of them
+ * changes. Directories are represented by their command files since the modification
+ * time of a directory does not change when files deeper down are modified.
+ * <p>
+ * With java -jar, the Class-Path of the jar manifest is stored together with the
+ * size and modification time of the jar, and is reused as long as they do not
+ * change, so that a warm start does not open the jar.
+ * <pre>
+ * int     magic, "CLIC"
+ * short   version
+ * int     manifest length, followed by UTF-8 bytes
+ * int     fingerprint length, followed by UTF-8 bytes
+ * [index] merged {@link CommandIndex}
+ * </pre>
+ */
+final class CommandCache {
+    /** system property that enable the cache */
+    static final String CACHE_PROPERTY = "tools4j.cli.cache";
+    /** cache directory relative to user home */
+    static final String DEFAULT_DIR = ".tools4j-cli/cache";
+    /** "CLIC" */
+    static final int MAGIC = 0x434C4943;
+    static final short VERSION = 2;
+
+    private final File dir;
+
+    private CommandCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the cache or null if it is not enabled.
+     */
+    static CommandCache get() {
+        final String value = System.getProperty(CACHE_PROPERTY);
+        if (value == null || "false".equals(value)) {
+            return null;
+        }
+        if ("true".equals(value)) {
+            return new CommandCache(new File(System.getProperty("user.home"), DEFAULT_DIR));
+        }
+        return new CommandCache(new File(value));
+    }
+
+    /**
+     * @return the cached commands or null if the cache is missing or stale.
+     */
+    CommandIndex read(ClassLoader cl) throws IOException {
+        List<File> entries = classpath(cl);
+        if (entries == null) {
+            return null;
+        }
+        final File file = file(entries);
+        if (!file.exists()) {
+            return null;
+        }
+        final ByteBuffer buf = CommandIndex.map(file.toURI().toURL());
+        if (buf.getInt() != MAGIC || buf.getShort() != VERSION) {
+            return null;
+        }
+        final byte[] manifest = new byte[buf.getInt()];
+        buf.get(manifest);
+        final File jar = launcherJar();
+        if (jar != null) {
+            entries = withManifest(entries, manifestClasspath(jar,
+                    new String(manifest, StandardCharsets.UTF_8)));
+        }
+        final byte[] expected = fingerprint(entries);
+        final int length = buf.getInt();
+        if (length != expected.length) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf.get() != expected[i]) {
+                return null;
+            }
+        }
+        return CommandIndex.open(buf);
+    }
+
+    /**
+     * Replace the cache for the classpath with the commands given.
+     */
+    void write(ClassLoader cl, Collection<Command> commands) throws IOException {
+        final List<File> entries = classpath(cl);
+        if (entries == null) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        final StringBuilder manifest = new StringBuilder();
+        final File jar = launcherJar();
+        List<File> all = entries;
+        if (jar != null) {
+            final List<File> manifestEntries = manifestClasspath(jar);
+            stat(manifest, jar);
+            for (File entry : manifestEntries) {
+                manifest.append(entry.getPath()).append('\n');
+            }
+            all = withManifest(entries, manifestEntries);
+        }
+        final byte[] manifestBytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        final byte[] fingerprint = fingerprint(all);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeInt(manifestBytes.length);
+        data.write(manifestBytes);
+        data.writeInt(fingerprint.length);
+        data.write(fingerprint);
+        CommandIndex.write(commands, data);
+
+        final File file = file(entries);
+        final File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            final FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                bytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * The name of the cache file only depend on the paths of the classpath, not
+     * including entries of the jar manifest.
+     */
+    private File file(List<File> entries) {
+        final StringBuilder sb = new StringBuilder();
+        for (File entry : entries) {
+            sb.append(entry.getPath()).append(File.pathSeparatorChar);
+        }
+        return new File(dir, String.format("%016x.idx", hash(sb)));
+    }
+
+    private static byte[] fingerprint(List<File> entries) {
+        final StringBuilder sb = new StringBuilder();
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                for (String path : new String[] { CommandIndex.FILEPATH, XmlCommands.FILEPATH }) {
+                    stat(sb, new File(entry, path));
+                }
+            } else {
+                stat(sb, entry);
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void stat(StringBuilder sb, File file) {
+        sb.append(file.getPath()).append('|').append(file.length()).append('|')
+                .append(file.lastModified()).append('\n');
+    }
+
+    /**
+     * 64 bit FNV-1a.
+     */
+    private static long hash(CharSequence str) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < str.length(); i++) {
+            hash ^= str.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Entries of java.class.path and any URLClassLoader between the system
+     * class loader and the class loader given, not including entries of the jar
+     * manifest.
+     *
+     * @return classpath entries or null if some entry is not a file.
+     */
+    static List<File> classpath(ClassLoader cl) {
+        final Set<File> entries = new LinkedHashSet<File>();
+        for (String path : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                entries.add(new File(path).getAbsoluteFile());
+            }
+        }
+        final List<ClassLoader> loaders = new ArrayList<ClassLoader>();
+        for (ClassLoader loader = cl; loader != null; loader = loader.getParent()) {
+            loaders.add(0, loader);
+        }
+        for (ClassLoader loader : loaders) {
+            if (!(loader instanceof URLClassLoader)) {
+                continue;
+            }
+            for (URL url : ((URLClassLoader) loader).getURLs()) {
+                if (!"file".equals(url.getProtocol())) {
+                    return null;
+                }
+                try {
+                    entries.add(new File(url.toURI()).getAbsoluteFile());
+                } catch (URISyntaxException e) {
+                    return null;
+                }
+            }
+        }
+        return new ArrayList<File>(entries);
+    }
+
+    /**
+     * @return the jar given to java -jar, which list dependencies in its manifest,
+     * or null if the classpath is not a single jar.
+     */
+    private static File launcherJar() {
+        final String path = System.getProperty("java.class.path", "");
+        if (path.isEmpty() || path.contains(File.pathSeparator)) {
+            return null;
+        }
+        final File jar = new File(path).getAbsoluteFile();
+        return jar.isFile() ? jar : null;
+    }
+
+    /**
+     * @return classpath entries with manifest entries following the jar.
+     */
+    private static List<File> withManifest(List<File> entries, List<File> manifest) {
+        final Set<File> all = new LinkedHashSet<File>();
+        all.add(entries.get(0));
+        all.addAll(manifest);
+        all.addAll(entries);
+        return new ArrayList<File>(all);
+    }
+
+    /**
+     * @return manifest entries stored in the cache, or read from the jar if it
+     * changed since the cache was written.
+     */
+    private static List<File> manifestClasspath(File jar, String cached) {
+        final StringBuilder sb = new StringBuilder();
+        stat(sb, jar);
+        if (!cached.startsWith(sb.toString())) {
+            return manifestClasspath(jar);
+        }
+        final List<File> entries = new ArrayList<File>();
+        for (String path : cached.substring(sb.length()).split("\n")) {
+            if (!path.isEmpty()) {
+                entries.add(new File(path));
+            }
+        }
+        return entries;
+    }
+
+    private static List<File> manifestClasspath(File jar) {
+        final List<File> entries = new ArrayList<File>();
+        try {
+            final JarFile file = new JarFile(jar);
+            try {
+                final Manifest manifest = file.getManifest();
+                final String classpath = manifest == null ? null
+                        : manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+                if (classpath == null) {
+                    return entries;
+                }
+                for (String path : classpath.trim().split("\\s+")) {
+                    final URL url = new URL(jar.getParentFile().toURI().toURL(), path);
+                    if ("file".equals(url.getProtocol())) {
+                        entries.add(new File(url.toURI()).getAbsoluteFile());
+                    }
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException | URISyntaxException e) {
+            // fingerprint without the manifest entries
+        }
+        return entries;
+    }
+}
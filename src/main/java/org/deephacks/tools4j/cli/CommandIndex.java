@@ -0,0 +1,414 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.deephacks.tools4j.cli.Command.Argument;
+import org.deephacks.tools4j.cli.Command.Option;
+
+/**
+ * CommandIndex is a compact binary version of commands.xml that is written by the
+ * AnnotationProcessor next to the xml file. It is read using plain NIO, which is a lot
+ * cheaper than bootstrapping JAXB for every execution of a command.
+ * <p>
+ * Layout, all numbers big endian:
+ * <pre>
+ * int     magic, "CLIX"
+ * short   version
+ * int     number of commands
+ * [name, int offset]     directory, sorted by command name
+ * [command]              command records, located by directory offset
+ * </pre>
+ * Strings are written as an int byte length followed by UTF-8 bytes, -1 means null.
+ * Since version 2, the documentation of a command is followed by a byte that tell
+ * whether options and arguments carry Bean Validation constraints. Since version 3,
+ * the documentation of an option is followed by a byte that tell whether the option
+ * take a value: 0 for flags, 1 for options with a value and -1 if not known. Older
+ * indexes are still read, their commands are always validated and the parser guess
+ * whether their options take a value.
+ * <p>
+ * An opened index only decode the commands that are asked for, which keeps the cost
+ * of a lookup independent of the number of commands available.
+ */
+final class CommandIndex implements CommandRegistry.Source {
+    /** classpath location of the command index file */
+    static final String FILEPATH = "META-INF/cli/commands.idx";
+    /** "CLIX" */
+    static final int MAGIC = 0x434C4958;
+    /** current version of the binary format */
+    static final short VERSION = 3;
+    /** set in the constraint flags if they were recorded */
+    private static final int CONSTRAINTS_KNOWN = 1;
+    /** set in the constraint flags if options are constrained */
+    private static final int CONSTRAINED_OPTS = 2;
+    /** set in the constraint flags if arguments are constrained */
+    private static final int CONSTRAINED_ARGS = 4;
+    /** option arity byte of options where it is not known */
+    private static final int UNKNOWN_ARITY = -1;
+
+    /** index content, the magic number at position 0 */
+    private final ByteBuffer buf;
+    /** position of each directory entry */
+    private final int[] entries;
+    /** binary format version of the index */
+    private final short version;
+
+    private CommandIndex(ByteBuffer buf) {
+        this.buf = buf.slice();
+        if (this.buf.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a command index.");
+        }
+        this.version = this.buf.getShort(4);
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported command index version " + version);
+        }
+        this.entries = new int[this.buf.getInt(6)];
+        int pos = 10;
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = pos;
+            // name and offset
+            pos += 4 + Math.max(this.buf.getInt(pos), 0) + 4;
+        }
+    }
+
+    /**
+     * Open an index located on the classpath without reading any commands.
+     *
+     * @param url location of a commands.idx file.
+     */
+    static CommandIndex open(URL url) throws IOException {
+        return new CommandIndex(map(url));
+    }
+
+    /**
+     * Open an index without reading any commands.
+     *
+     * @param buf index content, positioned at the magic number.
+     */
+    static CommandIndex open(ByteBuffer buf) {
+        return new CommandIndex(buf);
+    }
+
+    /**
+     * @return number of commands in the index.
+     */
+    int size() {
+        return entries.length;
+    }
+
+    /**
+     * Read a single command using a binary search of the directory, other
+     * commands are left untouched.
+     *
+     * @param name name of the command
+     * @return the command or null if it does not exist in this index.
+     */
+    @Override
+    public Command get(String name) {
+        final byte[] key = utf8(name);
+        int low = 0;
+        int high = entries.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(entries[mid], key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return readEntry(entries[mid]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find out if the index has commands within a group, using a binary search of
+     * the directory for the first name that follow the group. Names within a group
+     * are next to each other in the directory since they share the group and a
+     * space as prefix.
+     *
+     * @param path name of the group, levels separated by a space.
+     */
+    @Override
+    public boolean isGroup(String path) {
+        final byte[] prefix = utf8(path + " ");
+        int low = 0;
+        int high = entries.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(entries[mid], prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low < entries.length && startsWith(entries[low], prefix);
+    }
+
+    private boolean startsWith(int entry, byte[] prefix) {
+        if (buf.getInt(entry) < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.get(entry + 4 + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return all commands in the index.
+     */
+    @Override
+    public List<Command> all() {
+        final List<Command> commands = new ArrayList<Command>(entries.length);
+        for (int entry : entries) {
+            commands.add(readEntry(entry));
+        }
+        return commands;
+    }
+
+    private Command readEntry(int entry) {
+        final int offset = buf.getInt(entry + 4 + buf.getInt(entry));
+        final ByteBuffer record = buf.duplicate();
+        record.position(offset);
+        return readCommand(record, version);
+    }
+
+    /**
+     * Compare the name of a directory entry with a key, byte by byte.
+     */
+    private int compare(int entry, byte[] key) {
+        final int length = buf.getInt(entry);
+        final int min = Math.min(length, key.length);
+        for (int i = 0; i < min; i++) {
+            final int cmp = (buf.get(entry + 4 + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Write commands in binary form.
+     *
+     * @param cmds commands to write
+     * @param out output to write to, closed when done.
+     */
+    static void write(Collection<Command> cmds, OutputStream out) throws IOException {
+        final List<Command> sorted = new ArrayList<Command>(cmds);
+        // sorted in the same byte order as the directory is searched
+        Collections.sort(sorted, new Comparator<Command>() {
+            @Override
+            public int compare(Command o1, Command o2) {
+                final byte[] b1 = utf8(o1.getCommand());
+                final byte[] b2 = utf8(o2.getCommand());
+                final int min = Math.min(b1.length, b2.length);
+                for (int i = 0; i < min; i++) {
+                    final int cmp = (b1[i] & 0xff) - (b2[i] & 0xff);
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                }
+                return b1.length - b2.length;
+            }
+        });
+        final List<byte[]> records = new ArrayList<byte[]>();
+        // magic + version + count
+        int headerSize = 4 + 2 + 4;
+        for (Command cmd : sorted) {
+            records.add(record(cmd));
+            headerSize += 4 + utf8(cmd.getCommand()).length + 4;
+        }
+        final DataOutputStream data = new DataOutputStream(out);
+        try {
+            data.writeInt(MAGIC);
+            data.writeShort(VERSION);
+            data.writeInt(sorted.size());
+            int offset = headerSize;
+            for (int i = 0; i < sorted.size(); i++) {
+                writeString(data, sorted.get(i).getCommand());
+                data.writeInt(offset);
+                offset += records.get(i).length;
+            }
+            for (byte[] record : records) {
+                data.write(record);
+            }
+        } finally {
+            data.close();
+        }
+    }
+
+    private static byte[] record(Command cmd) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(bytes);
+        writeString(data, cmd.getCommand());
+        writeString(data, cmd.getClassName());
+        writeString(data, cmd.getDoc());
+        final Boolean opts = cmd.getConstrainedOpts();
+        final Boolean args = cmd.getConstrainedArgs();
+        if (opts != null && args != null) {
+            data.writeByte(CONSTRAINTS_KNOWN | (opts ? CONSTRAINED_OPTS : 0)
+                    | (args ? CONSTRAINED_ARGS : 0));
+        } else {
+            data.writeByte(0);
+        }
+        data.writeInt(cmd.getOptions().size());
+        for (Option opt : cmd.getOptions()) {
+            writeString(data, opt.getShortName());
+            writeString(data, opt.getLongName());
+            writeString(data, opt.getDoc());
+            final Boolean flag = opt.getFlag();
+            data.writeByte(flag == null ? UNKNOWN_ARITY : flag ? 0 : 1);
+        }
+        data.writeInt(cmd.getArguments().size());
+        for (Argument arg : cmd.getArguments()) {
+            writeString(data, arg.getName());
+            writeString(data, arg.getTypeName());
+            data.writeInt(arg.getPosition());
+            writeString(data, arg.getDoc());
+        }
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read all commands from an index located on the classpath.
+     *
+     * @param url location of a commands.idx file.
+     * @return commands in the index.
+     */
+    static List<Command> read(URL url) throws IOException {
+        return open(url).all();
+    }
+
+    private static Command readCommand(ByteBuffer buf, short version) {
+        final Command cmd = new Command(readString(buf), readString(buf), readString(buf));
+        if (version >= 2) {
+            final int flags = buf.get();
+            if ((flags & CONSTRAINTS_KNOWN) != 0) {
+                cmd.setConstrained((flags & CONSTRAINED_OPTS) != 0,
+                        (flags & CONSTRAINED_ARGS) != 0);
+            }
+        }
+        final int opts = buf.getInt();
+        for (int i = 0; i < opts; i++) {
+            final Option opt = new Option(readString(buf), readString(buf), readString(buf));
+            if (version >= 3) {
+                final int arity = buf.get();
+                cmd.addOptions(arity == UNKNOWN_ARITY ? opt : new Option(opt.getShortName(),
+                        opt.getLongName(), opt.getDoc(), arity == 0));
+            } else {
+                cmd.addOptions(opt);
+            }
+        }
+        final int args = buf.getInt();
+        for (int i = 0; i < args; i++) {
+            final String name = readString(buf);
+            final String type = readString(buf);
+            final int position = buf.getInt();
+            cmd.addArgument(new Argument(name, type, position, readString(buf)));
+        }
+        return cmd;
+    }
+
+    /**
+     * Map the index if it is a plain file, otherwise read it through a channel.
+     */
+    static ByteBuffer map(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                final File file = new File(url.toURI());
+                final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    final FileChannel channel = raf.getChannel();
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    raf.close();
+                }
+            } catch (URISyntaxException e) {
+                // fall through and use the stream
+            }
+        }
+        final InputStream in = url.openStream();
+        try {
+            final ReadableByteChannel channel = Channels.newChannel(in);
+            ByteBuffer buf = ByteBuffer.allocate(4096);
+            while (channel.read(buf) >= 0) {
+                if (!buf.hasRemaining()) {
+                    final ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                    buf.flip();
+                    bigger.put(buf);
+                    buf = bigger;
+                }
+            }
+            buf.flip();
+            return buf;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] utf8(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream data, String str) throws IOException {
+        if (str == null) {
+            data.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = utf8(str);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        final int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (buf.hasArray()) {
+            final int pos = buf.position();
+            buf.position(pos + length);
+            return new String(buf.array(), buf.arrayOffset() + pos, length,
+                    StandardCharsets.UTF_8);
+        }
+        final byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.deephacks.tools4j.cli.Command.XmlCommands;
+
+/**
+ * CommandRegistry keep track of where commands are declared and look them up by
+ * name. Metadata of a command is not read until the command is asked for, unless
+ * it was declared in a jar that only have a commands.xml.
+ * <p>
+ * Commands declared later on the classpath take precedence over earlier ones and
+ * commands found on the classpath take precedence over registered commands.
+ * <p>
+ * If the {@link CommandCache} is enabled, the commands of the classpath are read
+ * from the cache instead, as long as the cache is up to date.
+ */
+final class CommandRegistry {
+    /** commands registered with an instance */
+    private final Map<String, Command> registered = new HashMap<String, Command>();
+    /** commands.idx or commands.xml found on classpath, in classpath order */
+    private final List<Source> sources = new ArrayList<Source>();
+    /** commands that have been looked up */
+    private final Map<String, Command> resolved = new HashMap<String, Command>();
+
+    /**
+     * @param cmd command that is executed by an existing instance.
+     */
+    void register(Command cmd) {
+        registered.put(cmd.getCommand(), cmd);
+        resolved.remove(cmd.getCommand());
+    }
+
+    /**
+     * Find all command files available on classpath. Command indexes are opened
+     * but not read. Jars that was compiled before the index existed are read
+     * from commands.xml.
+     */
+    void readClasspath(ClassLoader cl) {
+        sources.clear();
+        resolved.clear();
+        final CommandCache cache = CommandCache.get();
+        try {
+            if (cache != null) {
+                final CommandIndex cached = cache.read(cl);
+                if (cached != null) {
+                    sources.add(cached);
+                    return;
+                }
+            }
+            final Set<String> indexes = new HashSet<String>();
+            final Enumeration<URL> indexUrls = cl.getResources(CommandIndex.FILEPATH);
+            while (indexUrls.hasMoreElements()) {
+                indexes.add(indexUrls.nextElement().toExternalForm());
+            }
+            final Enumeration<URL> urls = cl.getResources(XmlCommands.FILEPATH);
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                String index = indexUrlFor(url);
+                if (indexes.contains(index)) {
+                    try {
+                        sources.add(CommandIndex.open(new URL(index)));
+                        continue;
+                    } catch (IllegalArgumentException e) {
+                        // written by a newer version, read the commands.xml next to it
+                    }
+                }
+                InputStream in = url.openStream();
+                sources.add(new XmlSource(XmlCommands.fromXml(in)));
+            }
+            if (cache != null) {
+                cache.write(cl, classpathCommands());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Look up a command, reading only the metadata of that command.
+     *
+     * @return the command or null if it does not exist.
+     */
+    Command get(String name) {
+        Command cmd = resolved.get(name);
+        if (cmd != null) {
+            return cmd;
+        }
+        for (int i = sources.size() - 1; i >= 0 && cmd == null; i--) {
+            cmd = sources.get(i).get(name);
+        }
+        if (cmd == null) {
+            cmd = registered.get(name);
+        }
+        if (cmd != null) {
+            resolved.put(name, cmd);
+        }
+        return cmd;
+    }
+
+    /**
+     * Look up a group of commands, without reading any command.
+     *
+     * @param path name of the group, levels separated by a space.
+     * @return true if some command belong to the group, at any level.
+     */
+    boolean isGroup(String path) {
+        for (int i = sources.size() - 1; i >= 0; i--) {
+            if (sources.get(i).isGroup(path)) {
+                return true;
+            }
+        }
+        return isGroup(registered.keySet(), path);
+    }
+
+    /**
+     * @return true if a command name is within a group.
+     */
+    static boolean isGroup(Collection<String> names, String path) {
+        for (String name : names) {
+            if (inGroup(name, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a command name is within a group, at any level.
+     */
+    static boolean inGroup(String name, String path) {
+        return name.length() > path.length() && name.charAt(path.length()) == ' '
+                && name.startsWith(path);
+    }
+
+    /**
+     * Read the metadata of every command available. Only needed when listing
+     * the commands for the user.
+     */
+    Map<String, Command> all() {
+        final Map<String, Command> all = new LinkedHashMap<String, Command>(registered);
+        for (Command cmd : classpathCommands()) {
+            all.put(cmd.getCommand(), cmd);
+        }
+        // keep command instances that are already known
+        all.putAll(resolved);
+        return all;
+    }
+
+    /**
+     * @return commands found on classpath, merged in order of precedence.
+     */
+    private Collection<Command> classpathCommands() {
+        final Map<String, Command> merged = new HashMap<String, Command>();
+        for (Source source : sources) {
+            for (Command cmd : source.all()) {
+                merged.put(cmd.getCommand(), cmd);
+            }
+        }
+        return merged.values();
+    }
+
+    /**
+     * The index is located next to commands.xml in the same jar or directory.
+     */
+    private static String indexUrlFor(URL xmlUrl) {
+        final String xml = xmlUrl.toExternalForm();
+        return xml.substring(0, xml.length() - XmlCommands.FILEPATH.length())
+                + CommandIndex.FILEPATH;
+    }
+
+    /**
+     * A file on classpath that declare commands.
+     */
+    interface Source {
+        /**
+         * @return the command or null if it is not declared by this source.
+         */
+        Command get(String name);
+
+        /**
+         * @return true if some command of this source belong to the group.
+         */
+        boolean isGroup(String path);
+
+        /**
+         * @return all commands declared by this source.
+         */
+        List<Command> all();
+    }
+
+    /**
+     * Commands read from a commands.xml.
+     */
+    private static final class XmlSource implements Source {
+        private final Map<String, Command> commands = new LinkedHashMap<String, Command>();
+
+        XmlSource(List<Command> cmds) {
+            for (Command cmd : cmds) {
+                commands.put(cmd.getCommand(), cmd);
+            }
+        }
+
+        @Override
+        public Command get(String name) {
+            return commands.get(name);
+        }
+
+        @Override
+        public boolean isGroup(String path) {
+            return CommandRegistry.isGroup(commands.keySet(), path);
+        }
+
+        @Override
+        public List<Command> all() {
+            return new ArrayList<Command>(commands.values());
+        }
+    }
+}
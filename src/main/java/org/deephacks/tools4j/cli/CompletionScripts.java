@@ -0,0 +1,367 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import org.deephacks.tools4j.cli.Command.Option;
+
+/**
+ * CompletionScripts write bash and zsh completion scripts for the commands found by
+ * the {@link AnnotationProcessor}. The scripts know every command, group and option,
+ * so the shell complete them without starting a JVM.
+ * <p>
+ * Arguments and options of enum types complete their constants, other arguments and
+ * option values complete file names. The name of the program that is completed is
+ * given to javac as -A{@value #PROGRAM_OPTION}=name and is "cli" by default.
+ */
+final class CompletionScripts {
+    /** classpath location of the bash completion script */
+    static final String BASH = "META-INF/cli/completion.bash";
+    /** classpath location of the zsh completion script */
+    static final String ZSH = "META-INF/cli/completion.zsh";
+    /** annotation processor option that name the program */
+    static final String PROGRAM_OPTION = "tools4j.cli.program";
+    static final String DEFAULT_PROGRAM = "cli";
+
+    private final ProcessingEnvironment env;
+    /** commands by name */
+    private final Map<String, Completion> commands = new TreeMap<String, Completion>();
+
+    CompletionScripts(ProcessingEnvironment env) {
+        this.env = env;
+    }
+
+    /**
+     * Register a command, after its options have been added.
+     *
+     * @param options option fields of the command, in the same order as the options
+     * of the command.
+     */
+    void add(Command cmd, ExecutableElement method, List<VariableElement> options) {
+        final Completion completion = new Completion(cmd);
+        final List<? extends VariableElement> params = method.getParameters();
+        for (VariableElement param : params) {
+            completion.arguments.add(constants(param.asType()));
+        }
+        if (!params.isEmpty()) {
+            final TypeMirror last = params.get(params.size() - 1).asType();
+            completion.multiValued = last.getKind() == TypeKind.ARRAY
+                    || (last.getKind() == TypeKind.DECLARED && !((DeclaredType) last)
+                            .getTypeArguments().isEmpty());
+        }
+        for (int i = 0; i < options.size(); i++) {
+            completion.options.add(constants(options.get(i).asType()));
+        }
+        commands.put(cmd.getCommand(), completion);
+    }
+
+    /**
+     * @return constants of an enum type, or of the elements of an array or generic
+     * type, null for other types.
+     */
+    private static List<String> constants(TypeMirror type) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            type = ((ArrayType) type).getComponentType();
+        } else if (type.getKind() == TypeKind.DECLARED) {
+            final List<? extends TypeMirror> args = ((DeclaredType) type).getTypeArguments();
+            if (!args.isEmpty()) {
+                // element type of collections and iterators, value type of maps
+                type = args.get(args.size() - 1);
+            }
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        final Element element = ((DeclaredType) type).asElement();
+        if (element.getKind() != ElementKind.ENUM) {
+            return null;
+        }
+        final List<String> constants = new ArrayList<String>();
+        for (Element e : element.getEnclosedElements()) {
+            if (e.getKind() == ElementKind.ENUM_CONSTANT) {
+                constants.add(e.getSimpleName().toString());
+            }
+        }
+        return constants;
+    }
+
+    void write() throws IOException {
+        if (commands.isEmpty()) {
+            return;
+        }
+        String program = env.getOptions().get(PROGRAM_OPTION);
+        if (program == null || program.trim().isEmpty()) {
+            program = DEFAULT_PROGRAM;
+        }
+        write(BASH, program, false);
+        write(ZSH, program, true);
+    }
+
+    private void write(String path, String program, boolean zsh) throws IOException {
+        final FileObject file = env.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                "", path, (Element[]) null);
+        final PrintWriter pw = new PrintWriter(file.openWriter());
+        try {
+            write(pw, program, zsh);
+        } finally {
+            pw.close();
+        }
+    }
+
+    /**
+     * Write a script, bash and zsh only differ in how words are accessed and how
+     * completions are given back to the shell.
+     */
+    private void write(PrintWriter pw, String program, boolean zsh) {
+        final String fn = "_" + program.replaceAll("[^A-Za-z0-9_]", "_");
+        if (zsh) {
+            pw.println("#compdef " + program);
+        }
+        pw.println("# Generated by " + AnnotationProcessor.class.getName() + ", do not edit.");
+        pw.println();
+        if (zsh) {
+            pw.println(fn + "_words() { compadd -- ${=1}; }");
+            pw.println(fn + "_files() { _files; }");
+        } else {
+            pw.println(fn + "_words() { COMPREPLY=($(compgen -W \"$1\" -- \"$cur\")); }");
+            pw.println(fn + "_files() { COMPREPLY=($(compgen -f -- \"$cur\")); }");
+        }
+        pw.println();
+        pw.println(fn + "() {");
+        if (zsh) {
+            pw.println("    local cur=${words[CURRENT]} prev=${words[CURRENT-1]}");
+        } else {
+            pw.println("    local cur=${COMP_WORDS[COMP_CWORD]} prev=${COMP_WORDS[COMP_CWORD-1]}");
+        }
+        pw.println("    local group= cmd= value= rest= word i arg=0 candidates=");
+        pw.println(zsh ? "    for ((i = 2; i < CURRENT; i++)); do"
+                : "    for ((i = 1; i < COMP_CWORD; i++)); do");
+        pw.println(zsh ? "        word=${words[i]}" : "        word=${COMP_WORDS[i]}");
+        pw.println("        if [[ -z $cmd ]]; then");
+        pw.println("            # the command is given a group at a time");
+        pw.println("            group=${group:+$group }$word");
+        pw.println("            case $group in");
+        pw.println("                " + join(quoted(commands.keySet()), "|") + ") cmd=$group ;;");
+        pw.println("            esac");
+        pw.println("        elif [[ -n $value ]]; then");
+        pw.println("            value=");
+        pw.println("        elif [[ -z $rest && $word == -- ]]; then");
+        pw.println("            rest=1");
+        pw.println("        elif [[ -z $rest && $word == -[!0-9]* ]]; then");
+        pw.println("            case \"$cmd/$word\" in");
+        for (Completion c : commands.values()) {
+            final List<String> names = new ArrayList<String>();
+            for (Option opt : c.cmd.getOptions()) {
+                if (!Boolean.TRUE.equals(opt.getFlag())) {
+                    names.addAll(optionNames(c.cmd.getCommand() + "/", opt));
+                }
+            }
+            if (!names.isEmpty()) {
+                pw.println("                " + join(quoted(names), "|") + ") value=1 ;;");
+            }
+        }
+        pw.println("            esac");
+        pw.println("        else");
+        pw.println("            ((arg++))");
+        pw.println("        fi");
+        pw.println("    done");
+        pw.println("    if [[ -z $cmd ]]; then");
+        pw.println("        case $group in");
+        for (Map.Entry<String, Set<String>> level : levels().entrySet()) {
+            pw.println("            " + quote(level.getKey()) + ") candidates="
+                    + quote(join(level.getValue(), " ")) + " ;;");
+        }
+        pw.println("        esac");
+        pw.println("        " + fn + "_words \"$candidates\"");
+        pw.println("        return");
+        pw.println("    fi");
+        pw.println("    if [[ -n $value ]]; then");
+        pw.println("        case \"$cmd/$prev\" in");
+        for (Completion c : commands.values()) {
+            final List<Option> options = c.cmd.getOptions();
+            for (int i = 0; i < options.size() && i < c.options.size(); i++) {
+                if (c.options.get(i) != null) {
+                    pw.println("            " + join(quoted(optionNames(c.cmd.getCommand() + "/",
+                            options.get(i))), "|") + ") " + fn + "_words "
+                            + quote(join(c.options.get(i), " ")) + " ;;");
+                }
+            }
+        }
+        pw.println("            *) " + fn + "_files ;;");
+        pw.println("        esac");
+        pw.println("        return");
+        pw.println("    fi");
+        pw.println("    if [[ -z $rest && $cur == -* ]]; then");
+        pw.println("        case $cmd in");
+        for (Completion c : commands.values()) {
+            final List<String> names = new ArrayList<String>();
+            for (Option opt : c.cmd.getOptions()) {
+                names.addAll(optionNames("", opt));
+            }
+            if (!names.isEmpty()) {
+                pw.println("            " + quote(c.cmd.getCommand()) + ") candidates="
+                        + quote(join(names, " ")) + " ;;");
+            }
+        }
+        pw.println("        esac");
+        final List<String> reserved = new ArrayList<String>();
+        for (String option : GNUishParser.getReservedNonArgumentOptions()) {
+            reserved.add("--" + option);
+        }
+        pw.println("        " + fn + "_words \"$candidates " + join(reserved, " ") + "\"");
+        pw.println("        return");
+        pw.println("    fi");
+        pw.println("    case \"$cmd/$arg\" in");
+        for (Completion c : commands.values()) {
+            c.writeArguments(pw, fn);
+        }
+        pw.println("        *) " + fn + "_files ;;");
+        pw.println("    esac");
+        pw.println("}");
+        pw.println();
+        if (zsh) {
+            pw.println("if [[ $zsh_eval_context[-1] == loadautofunc ]]; then");
+            pw.println("    " + fn + " \"$@\"");
+            pw.println("else");
+            pw.println("    compdef " + fn + " " + program);
+            pw.println("fi");
+        } else {
+            pw.println("complete -F " + fn + " " + program);
+        }
+    }
+
+    /**
+     * @return the words that may follow each group, the empty group first.
+     */
+    private Map<String, Set<String>> levels() {
+        final Map<String, Set<String>> levels = new TreeMap<String, Set<String>>();
+        for (String name : commands.keySet()) {
+            final String[] words = name.split(" ");
+            String group = "";
+            for (String word : words) {
+                Set<String> next = levels.get(group);
+                if (next == null) {
+                    next = new TreeSet<String>();
+                    levels.put(group, next);
+                }
+                next.add(word);
+                group = group.isEmpty() ? word : group + " " + word;
+            }
+        }
+        return levels;
+    }
+
+    private static List<String> optionNames(String prefix, Option opt) {
+        final List<String> names = new ArrayList<String>();
+        if (opt.getShortName() != null && !opt.getShortName().isEmpty()) {
+            names.add(prefix + "-" + opt.getShortName());
+        }
+        names.add(prefix + "--" + opt.getLongName());
+        return names;
+    }
+
+    private static List<String> quoted(Iterable<String> words) {
+        final List<String> quoted = new ArrayList<String>();
+        for (String word : words) {
+            quoted.add(quote(word));
+        }
+        return quoted;
+    }
+
+    /**
+     * @return a word in single quotes, which the shell take literally.
+     */
+    private static String quote(String word) {
+        return "'" + word.replace("'", "'\\''") + "'";
+    }
+
+    private static String join(Iterable<String> words, String separator) {
+        final StringBuilder sb = new StringBuilder();
+        for (String word : words) {
+            if (sb.length() > 0) {
+                sb.append(separator);
+            }
+            sb.append(word);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * What a single command complete.
+     */
+    private static final class Completion {
+        private final Command cmd;
+        /** enum constants of each argument, null for other types */
+        private final List<List<String>> arguments = new ArrayList<List<String>>();
+        /** enum constants of each option, null for other types */
+        private final List<List<String>> options = new ArrayList<List<String>>();
+        /** true if the last argument take all remaining arguments */
+        private boolean multiValued;
+
+        private Completion(Command cmd) {
+            this.cmd = cmd;
+        }
+
+        /**
+         * Write the cases of arguments that complete enum constants.
+         */
+        private void writeArguments(PrintWriter pw, String fn) {
+            final String prefix = cmd.getCommand() + "/";
+            final int last = arguments.size() - 1;
+            for (int i = 0; i <= last; i++) {
+                if (i == last && multiValued) {
+                    continue;
+                }
+                if (arguments.get(i) != null) {
+                    pw.println("        " + quote(prefix + i) + ") " + fn + "_words "
+                            + quote(join(arguments.get(i), " ")) + " ;;");
+                }
+            }
+            if (last >= 0 && multiValued && arguments.get(last) != null) {
+                // earlier arguments are matched above or complete files
+                final List<String> files = new ArrayList<String>();
+                for (int i = 0; i < last; i++) {
+                    if (arguments.get(i) == null) {
+                        files.add(quote(prefix + i));
+                    }
+                }
+                if (!files.isEmpty()) {
+                    pw.println("        " + join(files, "|") + ") " + fn + "_files ;;");
+                }
+                pw.println("        " + quote(prefix) + "*) " + fn + "_words "
+                        + quote(join(arguments.get(last), " ")) + " ;;");
+            }
+        }
+    }
+}
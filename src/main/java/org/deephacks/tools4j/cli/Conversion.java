@@ -13,10 +13,13 @@
 */
 package org.deephacks.tools4j.cli;
 
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.GenericArrayType;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
@@ -24,18 +27,22 @@ import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.WeakHashMap;
 
 import org.deephacks.tools4j.cli.Conversion.Converter.ObjectToStringConverter;
 import org.deephacks.tools4j.cli.Conversion.Converter.StringToBooleanConverter;
@@ -46,19 +53,49 @@ import org.deephacks.tools4j.cli.Conversion.Converter.StringToObjectConverter;
 /**
  * Conversion is responsible for converting values using registered converters.
  * 
+ * Besides the default converters, {@link CliConverter} providers listed in
+ * META-INF/services/org.deephacks.tools4j.cli.CliConverter are registered when
+ * conversion is first used. The service file is the index of providers, so nothing
+ * else on the classpath is scanned.
+ * 
  * Inspiration from http://www.springsource.org
  */
 @SuppressWarnings({ "unchecked", "rawtypes" })
 final class Conversion {
+    /** Target types that are resolved for String values when converters are registered. */
+    private static final Class<?>[] COMMON_TYPES = { String.class, Boolean.class, Byte.class,
+            Short.class, Integer.class, Long.class, Float.class, Double.class, BigInteger.class,
+            BigDecimal.class, File.class, URL.class };
     /** Keeper for converters available. */
     private final HashMap<Class<?>, SourceTargetPair> converters = new HashMap<Class<?>, SourceTargetPair>();
-    /** Lookup cache for finding converters. */
-    private final ConcurrentHashMap<SourceTargetPairKey, Converter> cache = new ConcurrentHashMap<SourceTargetPairKey, Converter>();
+    /**
+     * Lookup cache for finding converters, by source class and then target class. A
+     * converter that is found is returned without allocating anything. Entries that a
+     * registered converter takes over are removed, the rest are kept.
+     */
+    private volatile ClassValue<ClassValue<CliConverter>> cache = newCache();
+    /** target classes that have been resolved for each source class, weakly held */
+    private final Map<Class<?>, Set<Class<?>>> resolved =
+            new WeakHashMap<Class<?>, Set<Class<?>>>();
 
     private static Conversion INSTANCE;
 
     private Conversion() {
+        this(true);
+    }
+
+    /**
+     * Create an instance of its own, rather than the shared one returned by
+     * {@link #get()}.
+     *
+     * @param resolveCommonTypes false to start with nothing in the lookup cache.
+     */
+    Conversion(boolean resolveCommonTypes) {
         registerDefault();
+        registerServices();
+        if (resolveCommonTypes) {
+            resolveCommonTypes();
+        }
     }
 
     public static synchronized Conversion get() {
@@ -91,75 +128,177 @@ final class Conversion {
             return null;
         }
 
+        if (targetclass.isPrimitive() && source instanceof String) {
+            return (T) Primitives.parse((String) source, targetclass);
+        }
         final Class<?> sourceclass = source.getClass();
-        final SourceTargetPairKey key = new SourceTargetPairKey(sourceclass, targetclass);
-        Converter converter = cache.get(key);
-
-        if (converter != null) {
+        final CliConverter converter = cache.get(sourceclass).get(targetclass);
+        if (converter == null) {
+            throw new ConversionException("No suitable converter found for target class ["
+                    + targetclass.getName() + "] and source value [" + sourceclass.getName()
+                    + "]. The following converters are available [" + converterNames() + "]");
+        }
+        try {
             return (T) converter.convert(source, targetclass);
+        } catch (IllegalArgumentException e) {
+            // converters that are not part of this package reject values this way
+            throw new ConversionException(e);
         }
-        final LinkedList<SourceTargetPairMatch> matches = new LinkedList<SourceTargetPairMatch>();
+    }
+
+    /**
+     * Find the converter that best match a source and target class.
+     *
+     * @return the converter or null if no converter match.
+     */
+    private synchronized CliConverter resolve(Class<?> sourceclass, Class<?> targetclass) {
+        Set<Class<?>> targets = resolved.get(sourceclass);
+        if (targets == null) {
+            targets = Collections.newSetFromMap(new WeakHashMap<Class<?>, Boolean>());
+            resolved.put(sourceclass, targets);
+        }
+        targets.add(targetclass);
+        SourceTargetPairMatch best = null;
+        final Comparator<SourceTargetPairMatch> comparator = SourceTargetPairMatch.bestTargetMatch();
         for (SourceTargetPair pair : converters.values()) {
             SourceTargetPairMatch match = pair.match(sourceclass, targetclass);
-            if (match.matchesSource() && match.matchesTarget()) {
-                matches.add(match);
+            if (match.matchesSource() && match.matchesTarget()
+                    && (best == null || comparator.compare(match, best) < 0)) {
+                best = match;
             }
         }
-        if (matches.size() == 0) {
-            throw new ConversionException("No suitable converter found for target class ["
-                    + targetclass.getName() + "] and source value [" + sourceclass.getName()
-                    + "]. The following converters are available [" + converters.keySet() + "]");
-        }
+        return best == null ? null : best.pair.converter;
+    }
 
-        Collections.sort(matches, SourceTargetPairMatch.bestTargetMatch());
-        converter = matches.get(0).pair.converter;
-        cache.put(key, converter);
-        return (T) converter.convert(source, targetclass);
+    private synchronized String converterNames() {
+        return converters.keySet().toString();
+    }
 
+    private ClassValue<ClassValue<CliConverter>> newCache() {
+        return new ClassValue<ClassValue<CliConverter>>() {
+            @Override
+            protected ClassValue<CliConverter> computeValue(final Class<?> sourceclass) {
+                return new ClassValue<CliConverter>() {
+                    @Override
+                    protected CliConverter computeValue(Class<?> targetclass) {
+                        return resolve(sourceclass, targetclass);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Resolve converters of common types up front, rather than on first conversion.
+     */
+    private void resolveCommonTypes() {
+        final ClassValue<CliConverter> fromString = cache.get(String.class);
+        for (Class<?> type : COMMON_TYPES) {
+            fromString.get(type);
+        }
     }
 
     public <T, V> Collection<T> convert(Collection<V> values, final Class<T> clazz) {
-        final ArrayList<T> objects = new ArrayList<T>();
         if (values == null) {
             return new ArrayList<T>();
         }
+        final ArrayList<T> objects = new ArrayList<T>(values.size());
         for (V object : values) {
             objects.add(convert(object, clazz));
         }
         return objects;
     }
 
+    /**
+     * Convert the values of a map, keys are kept as they are.
+     */
     public <T, V> Map<V, T> convert(Map<V, Object> values, final Class<T> clazz) {
         if (values == null) {
             return null;
         }
-        throw new UnsupportedOperationException();
+        final Map<V, T> objects = new LinkedHashMap<V, T>(Math.max(16,
+                (int) (values.size() / 0.75f) + 1));
+        for (Map.Entry<V, Object> entry : values.entrySet()) {
+            objects.put(entry.getKey(), convert(entry.getValue(), clazz));
+        }
+        return objects;
     }
 
-    public <T, V> void register(Converter converter) {
-        if (converters.get(converter.getClass()) != null) {
-            return;
+    /**
+     * Register a converter, unless a converter of the same class is registered
+     * already. Only converters that have been looked up for source and target classes
+     * that the new converter is a better match for are forgotten.
+     */
+    public synchronized void register(CliConverter converter) {
+        final SourceTargetPair pair = add(converter);
+        if (pair != null) {
+            invalidate(pair);
+            resolveCommonTypes();
         }
-        converters.put(converter.getClass(), new SourceTargetPair(converter));
-        cache.clear();
+    }
 
+    /**
+     * Forget the converters that have been looked up for source and target classes
+     * that a new converter match at least as well.
+     */
+    private void invalidate(SourceTargetPair pair) {
+        final Comparator<SourceTargetPairMatch> comparator = SourceTargetPairMatch.bestTargetMatch();
+        for (Map.Entry<Class<?>, Set<Class<?>>> entry : resolved.entrySet()) {
+            final Class<?> sourceclass = entry.getKey();
+            final ClassValue<CliConverter> targets = cache.get(sourceclass);
+            for (Iterator<Class<?>> it = entry.getValue().iterator(); it.hasNext();) {
+                final Class<?> targetclass = it.next();
+                final SourceTargetPairMatch match = pair.match(sourceclass, targetclass);
+                if (!match.matchesSource() || !match.matchesTarget()) {
+                    continue;
+                }
+                final CliConverter current = targets.get(targetclass);
+                if (current == null || current == pair.converter || comparator.compare(match,
+                        converters.get(current.getClass()).match(sourceclass, targetclass)) <= 0) {
+                    targets.remove(targetclass);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the registered pair, or null if a converter of the same class is
+     * registered already.
+     */
+    private synchronized SourceTargetPair add(CliConverter converter) {
+        if (converters.get(converter.getClass()) != null) {
+            return null;
+        }
+        final SourceTargetPair pair = new SourceTargetPair(converter);
+        converters.put(converter.getClass(), pair);
+        return pair;
     }
 
     private void registerDefault() {
-        register(new StringToEnumConverter());
-        register(new StringToObjectConverter());
-        register(new ObjectToStringConverter());
-        register(new StringToNumberConverter());
-        register(new StringToBooleanConverter());
+        add(new StringToEnumConverter());
+        add(new StringToObjectConverter());
+        add(new ObjectToStringConverter());
+        add(new StringToNumberConverter());
+        add(new StringToBooleanConverter());
+    }
+
+    /**
+     * Register converters provided through the service loader of the context class loader.
+     */
+    private void registerServices() {
+        for (CliConverter converter : ServiceLoader.load(CliConverter.class)) {
+            add(converter);
+        }
     }
 
     private static class SourceTargetPair {
         private final Class<?> source;
         private final Class<?> target;
-        private final Converter converter;
+        private final CliConverter converter;
 
-        public SourceTargetPair(Converter converter) {
-            List<Class<?>> types = getParameterizedType(converter.getClass(), Converter.class);
+        public SourceTargetPair(CliConverter converter) {
+            List<Class<?>> types = getParameterizedType(converter.getClass(), CliConverter.class);
             if (types.size() < 2) {
                 throw new IllegalArgumentException(
                         "Unable to the determine generic source and target type "
@@ -198,39 +337,35 @@ final class Conversion {
          * @return The distance in the class hierarchy between the candidate and capability.
          */
         private int distance(Class<?> candidate, Class<?> capability) {
-            int distance = 0;
             if (candidate == capability) {
-                return distance;
+                return 0;
             }
-            final LinkedList<Class<?>> superclasses = new LinkedList<Class<?>>();
-            superclasses.add(candidate.getSuperclass());
-            while (!superclasses.isEmpty()) {
-                Class<?> candidateSuperclazz = superclasses.removeLast();
-                if (candidateSuperclazz == null) {
-                    // Object converters are absolute last resort
-                    return Integer.MAX_VALUE;
-                }
-                if (candidateSuperclazz.equals(capability)) {
-                    if (capability == Object.class) {
-                        // Object converters are absolute last resort
-                        return Integer.MAX_VALUE;
+            if (!capability.isAssignableFrom(candidate)) {
+                // no match
+                return -1;
+            }
+            if (capability == Object.class) {
+                // Object converters are absolute last resort
+                return Integer.MAX_VALUE;
+            }
+            // breadth first through superclasses and interfaces, interfaces have none
+            List<Class<?>> level = new ArrayList<Class<?>>();
+            level.add(candidate);
+            for (int distance = 1; !level.isEmpty(); distance++) {
+                final List<Class<?>> next = new ArrayList<Class<?>>();
+                for (Class<?> cls : level) {
+                    if (cls.getSuperclass() != null) {
+                        next.add(cls.getSuperclass());
                     }
-                    return ++distance;
+                    next.addAll(Arrays.asList(cls.getInterfaces()));
                 }
-                addInterfaces(candidateSuperclazz, superclasses);
-                if (candidateSuperclazz.getSuperclass() != null) {
-                    superclasses.add(candidateSuperclazz.getSuperclass());
+                if (next.contains(capability)) {
+                    return distance;
                 }
+                level = next;
             }
-            // no match
             return -1;
         }
-
-        private void addInterfaces(Class<?> clazz, LinkedList<Class<?>> superclasses) {
-            for (Class<?> inheritedIfc : clazz.getInterfaces()) {
-                addInterfaces(inheritedIfc, superclasses);
-            }
-        }
     }
 
     private static class SourceTargetPairMatch {
@@ -268,54 +403,14 @@ final class Conversion {
                     } else if (o1.bestSourceMatch > o2.bestSourceMatch) {
                         return 1;
                     }
-                    return 0;
+                    // equal matches, do not depend on the order of registration
+                    return o1.pair.converter.getClass().getName().compareTo(
+                            o2.pair.converter.getClass().getName());
                 }
             };
         }
     }
 
-    private static class SourceTargetPairKey {
-        final Class<?> source;
-        final Class<?> target;
-
-        public SourceTargetPairKey(Class<?> source, Class<?> target) {
-            this.source = source;
-            this.target = target;
-        }
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((source == null) ? 0 : source.hashCode());
-            result = prime * result + ((target == null) ? 0 : target.hashCode());
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            SourceTargetPairKey other = (SourceTargetPairKey) obj;
-            if (source == null) {
-                if (other.source != null)
-                    return false;
-            } else if (!source.equals(other.source))
-                return false;
-            if (target == null) {
-                if (other.target != null)
-                    return false;
-            } else if (!target.equals(other.target))
-                return false;
-            return true;
-        }
-
-    }
-
     /**
      * Returns the parameterized type of a class, if exists. Wild cards, type
      * variables and raw types will be returned as an empty list.
@@ -403,15 +498,9 @@ final class Conversion {
      * the source value V. 
      * 
      * Converter providers are regsitered using the standard java service provider 
-     * mechanism.
+     * mechanism, see {@link CliConverter}.
      */
-    interface Converter<V, T> {
-        /**
-         * @param source The source value to convert.
-         * @param the most specific type that the value should be converted to.  
-         * @return A converted object.
-         */
-        public T convert(V source, Class<? extends T> specificType);
+    interface Converter<V, T> extends CliConverter<V, T> {
 
         /**
          * This is the fallback string converter that simply does a toString on the
@@ -430,24 +519,10 @@ final class Conversion {
         }
 
         static final class StringToBooleanConverter implements Converter<String, Boolean> {
-            private static final Set<String> trueValues = new HashSet<String>();
-            private static final Set<String> falseValues = new HashSet<String>();
-
-            static {
-                trueValues.addAll(Arrays.asList("true", "on", "yes", "y", "1"));
-                falseValues.addAll(Arrays.asList("false", "off", "no", "n", "0"));
-            }
 
             @Override
             public Boolean convert(String source, Class<? extends Boolean> specificType) {
-                final String value = source.trim();
-                if (trueValues.contains(value)) {
-                    return Boolean.TRUE;
-                } else if (falseValues.contains(value)) {
-                    return Boolean.FALSE;
-                } else {
-                    throw new ConversionException("Invalid boolean value '" + source + "'");
-                }
+                return Primitives.parseBoolean(source) ? Boolean.TRUE : Boolean.FALSE;
             }
 
         }
@@ -534,35 +609,74 @@ final class Conversion {
         }
 
         /**
-         * General purpose converter that is able to convert a String to an object if the 
-         * object have a suitable static valueof method or a single argument String constructor.
-         * 
-         * This should work fine for File, URL, DateTime, DurationTime
+         * General purpose converter that is able to convert a String to an object if the
+         * object have a suitable static valueOf, of or parse method or a single argument
+         * String constructor.
+         *
+         * This should work fine for File, URL, URI, Path, DateTime, DurationTime
+         *
+         * The factory of each class is looked up once and kept as a method handle,
+         * classes that have no factory are remembered as well.
          */
         static final class StringToObjectConverter implements Converter<String, Object> {
+            /** static factory methods, in order of preference */
+            private static final String[] FACTORY_METHODS = { "valueOf", "of", "parse" };
+            /** (String)Object, the type of factories */
+            private static final MethodType FACTORY_TYPE = MethodType.methodType(Object.class,
+                    String.class);
+            /** factory of each class, null if it have none */
+            private static final ClassValue<MethodHandle> FACTORIES =
+                    new ClassValue<MethodHandle>() {
+                        @Override
+                        protected MethodHandle computeValue(Class<?> type) {
+                            return findFactory(type);
+                        }
+                    };
 
             @Override
             public Object convert(String source, Class<? extends Object> specificType) {
-                final Method valueof = getStaticMethod(specificType, "valueof", String.class);
+                final MethodHandle factory = FACTORIES.get(specificType);
+                if (factory == null) {
+                    // reported to the user as a value of the wrong type
+                    throw new ConversionException("No static valueOf, of or parse "
+                            + "method or Constructor(String.class) exists on "
+                            + specificType.getName());
+                }
+                try {
+                    return (Object) factory.invokeExact(source);
+                } catch (Throwable e) {
+                    throw new ConversionException(e);
+                }
+            }
 
+            private static MethodHandle findFactory(Class<?> type) {
+                final MethodHandles.Lookup lookup = MethodHandles.lookup();
                 try {
-                    if (valueof != null) {
-                        valueof.setAccessible(true);
-                        return valueof.invoke(null, source);
+                    if (type == Path.class) {
+                        // interface without a factory of its own before Java 11
+                        final Method get = Paths.class.getMethod("get", String.class,
+                                String[].class);
+                        return MethodHandles.insertArguments(lookup.unreflect(get), 1,
+                                (Object) new String[0]).asType(FACTORY_TYPE);
                     }
-                    final Constructor<?> cons = getConstructor(specificType, String.class);
+                    for (String name : FACTORY_METHODS) {
+                        for (Class<?> param : new Class<?>[] { String.class, CharSequence.class }) {
+                            final Method method = getStaticMethod(type, name, param);
+                            if (method != null && type.isAssignableFrom(method.getReturnType())) {
+                                method.setAccessible(true);
+                                return lookup.unreflect(method).asType(FACTORY_TYPE);
+                            }
+                        }
+                    }
+                    final Constructor<?> cons = getConstructor(type, String.class);
                     if (cons != null) {
                         cons.setAccessible(true);
-                        return cons.newInstance(source);
+                        return lookup.unreflectConstructor(cons).asType(FACTORY_TYPE);
                     }
-                } catch (InvocationTargetException e) {
-                    throw new ConversionException(e.getTargetException());
-                } catch (Throwable e) {
+                } catch (ReflectiveOperationException e) {
                     throw new ConversionException(e);
                 }
-                throw new UnsupportedOperationException(
-                        "No static valueOf(String.class) method or Constructor(String.class) exists on "
-                                + specificType.getName());
+                return null;
             }
 
             public static <T> Constructor<T> getConstructor(Class<T> clazz, Class<?>... paramTypes) {
@@ -0,0 +1,648 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.JavaFileObject;
+
+/**
+ * DispatcherGenerator write the source of a {@link CliDispatcher} for a class that
+ * declare commands, if the class allow it to be accessed from another class in
+ * the same package.
+ */
+final class DispatcherGenerator {
+    /** meta annotation of Bean Validation constraints */
+    private static final String CONSTRAINT = "javax.validation.Constraint";
+    /** Bean Validation annotation that cascade validation */
+    private static final String VALID = "javax.validation.Valid";
+    private final ProcessingEnvironment env;
+    private final Types types;
+
+    DispatcherGenerator(ProcessingEnvironment env) {
+        this.env = env;
+        this.types = env.getTypeUtils();
+    }
+
+    /**
+     * Generate a dispatcher for the type, if possible.
+     *
+     * @return true if a dispatcher was generated.
+     */
+    boolean generate(TypeElement type) throws IOException {
+        final List<ExecutableElement> methods = commandMethods(type);
+        final List<VariableElement> fields = optionFields(type);
+        if (methods.isEmpty() || !isDispatchable(type, methods, fields)) {
+            return false;
+        }
+        final String pkg = packageOf(type);
+        final String simpleName = type.getSimpleName() + CliDispatcher.SUFFIX;
+        final String className = type.getSimpleName().toString();
+        final JavaFileObject file = env.getFiler().createSourceFile(
+                type.getQualifiedName() + CliDispatcher.SUFFIX, type);
+        final PrintWriter pw = new PrintWriter(file.openWriter());
+        try {
+            if (!pkg.isEmpty()) {
+                pw.println("package " + pkg + ";");
+                pw.println();
+            }
+            pw.println("/**");
+            pw.println(" * Generated by " + AnnotationProcessor.class.getName()
+                    + ", do not edit.");
+            pw.println(" */");
+            pw.println("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })");
+            pw.println("public final class " + simpleName + " extends "
+                    + CliDispatcher.class.getName() + " {");
+            pw.println();
+            pw.println("    @Override");
+            pw.println("    protected Object newInstance() {");
+            pw.println("        return new " + className + "();");
+            pw.println("    }");
+            pw.println();
+            pw.println("    @Override");
+            pw.println("    protected boolean execute(Object o, Input in) throws Exception {");
+            pw.println("        final " + className + " instance = (" + className + ") o;");
+            pw.println("        final String command = command(in);");
+            // methods whose arguments are validated, looked up when first validated
+            final List<ExecutableElement> validated = new ArrayList<ExecutableElement>();
+            for (ExecutableElement m : methods) {
+                if (constrainsArguments(type, m)) {
+                    validated.add(m);
+                }
+                writeMethod(pw, m, validated.indexOf(m));
+            }
+            pw.println("        return false;");
+            pw.println("    }");
+            for (int i = 0; i < validated.size(); i++) {
+                writeMethodLookup(pw, className, validated.get(i), i);
+            }
+            pw.println();
+            writeOptionDefaults(pw, className, fields);
+            pw.println();
+            pw.println("    private static void injectOpts(" + className
+                    + " instance, Input in) {");
+            for (VariableElement f : fields) {
+                writeOption(pw, f);
+            }
+            if (constrainsOptions(type)) {
+                pw.println("        validateOpts(instance);");
+            }
+            pw.println("    }");
+            pw.println("}");
+        } finally {
+            pw.close();
+        }
+        return true;
+    }
+
+    /**
+     * @param validated index of the method lookup used to validate the arguments,
+     * -1 if they are not constrained.
+     */
+    private void writeMethod(PrintWriter pw, ExecutableElement m, int validated) {
+        final List<? extends VariableElement> params = m.getParameters();
+        final String name = m.getSimpleName().toString();
+        pw.println("        if (\"" + name + "\".equals(command)) {");
+        final List<String> vars = new ArrayList<String>();
+        // declared once arguments are checked, to not start reading needlessly
+        String linesVar = null;
+        for (int i = 0; i < params.size(); i++) {
+            final VariableElement param = params.get(i);
+            final String var = "a" + i;
+            vars.add(var);
+            final TypeMirror type = param.asType();
+            if (isLines(type)) {
+                linesVar = "            final " + type + " " + var + " = (" + type + ") lines(in, "
+                        + i + ", \"" + param.getSimpleName() + "\", " + linesElement(type) + ");";
+                continue;
+            }
+            if (isStringVarargs(m, i)) {
+                pw.println("            final String[] " + var + " = varargs(in, " + i + ");");
+                continue;
+            }
+            final List<String> elements = elementLiterals(type);
+            if (elements != null) {
+                pw.println("            final " + type + " " + var + " = (" + type
+                        + ") arguments(in, " + i + ", \"" + param.getSimpleName() + "\", "
+                        + types.erasure(type) + ".class" + prefixed(elements) + ");");
+                continue;
+            }
+            if (type.getKind().isPrimitive()) {
+                pw.println("            final " + primitive(type) + " " + var + " = " + parser(type)
+                        + "(argumentValue(in, " + i + "), \"" + param.getSimpleName()
+                        + "\", false);");
+                continue;
+            }
+            // declared boxed to not unbox missing arguments before they are checked
+            pw.println("            final " + boxed(type) + " " + var + " = " + cast(type)
+                    + "argument(in, " + i + ", \"" + param.getSimpleName() + "\", "
+                    + classLiteral(type) + ");");
+        }
+        final String args = join(vars);
+        pw.println("            injectOpts(instance, in);");
+        final boolean multi = !params.isEmpty()
+                && isMultiValued(params.get(params.size() - 1).asType());
+        final int count = multi || linesVar != null ? params.size() - 1 : params.size();
+        // lines are read until the command method return
+        final String indent = linesVar != null ? "                " : "            ";
+        if (linesVar != null) {
+            // the file to read lines from is optional
+            pw.println("            checkArguments(in, " + count + ", " + params.size() + ");");
+            pw.println(linesVar);
+            pw.println("            try {");
+        } else {
+            pw.println("            checkArguments(in, " + count + ", " + multi + ");");
+        }
+        if (validated >= 0) {
+            pw.println(indent + "if (validatesArgs()) {");
+            pw.println(indent + "    validateArgs(in, instance, method" + validated
+                    + "(), new Object[] { " + args + " });");
+            pw.println(indent + "}");
+        }
+        pw.println(indent + "instance." + name + "(" + args + ");");
+        if (linesVar != null) {
+            pw.println("            } finally {");
+            pw.println("                close(" + vars.get(vars.size() - 1) + ");");
+            pw.println("            }");
+        }
+        pw.println("            return true;");
+        pw.println("        }");
+    }
+
+    /**
+     * Write the methods that capture and restore the values of option fields, which
+     * let a reused instance start from the initial values of its options.
+     */
+    private void writeOptionDefaults(PrintWriter pw, String className,
+            List<VariableElement> fields) {
+        pw.println();
+        pw.println("    @Override");
+        pw.println("    protected Object[] getOptions(Object o) {");
+        pw.println("        final " + className + " instance = (" + className + ") o;");
+        final List<String> values = new ArrayList<String>();
+        for (VariableElement f : fields) {
+            values.add("instance." + f.getSimpleName());
+        }
+        pw.println("        return new Object[] { " + join(values) + " };");
+        pw.println("    }");
+        pw.println();
+        pw.println("    @Override");
+        pw.println("    protected void setOptions(Object o, Object[] values) {");
+        pw.println("        final " + className + " instance = (" + className + ") o;");
+        for (int i = 0; i < fields.size(); i++) {
+            final VariableElement f = fields.get(i);
+            pw.println("        instance." + f.getSimpleName() + " = (" + boxed(f.asType())
+                    + ") values[" + i + "];");
+        }
+        pw.println("    }");
+    }
+
+    /**
+     * Write a lookup of the Method that Bean Validation need to validate the arguments
+     * of a command method, which is done once and only if arguments are validated.
+     */
+    private void writeMethodLookup(PrintWriter pw, String className, ExecutableElement m,
+            int index) {
+        final StringBuilder params = new StringBuilder();
+        for (VariableElement param : m.getParameters()) {
+            params.append(", ").append(types.erasure(param.asType())).append(".class");
+        }
+        pw.println();
+        pw.println("    private static volatile java.lang.reflect.Method method" + index + ";");
+        pw.println();
+        pw.println("    private static java.lang.reflect.Method method" + index + "() {");
+        pw.println("        if (method" + index + " == null) {");
+        pw.println("            method" + index + " = method(" + className + ".class, \""
+                + m.getSimpleName() + "\"" + params + ");");
+        pw.println("        }");
+        pw.println("        return method" + index + ";");
+        pw.println("    }");
+    }
+
+    private void writeOption(PrintWriter pw, VariableElement f) {
+        final CliOption anno = f.getAnnotation(CliOption.class);
+        final String name = f.getSimpleName().toString();
+        final TypeMirror type = f.asType();
+        final String boxed = boxed(type).toString();
+        pw.println("        {");
+        final List<String> elements = elementLiterals(type);
+        if (elements != null) {
+            pw.println("            final " + type + " value = (" + type + ") options(in, \""
+                    + anno.shortName() + "\", \"" + name + "\", " + types.erasure(type)
+                    + ".class" + prefixed(elements) + ");");
+            pw.println("            if (value != null) {");
+            pw.println("                instance." + name + " = value;");
+            pw.println("            }");
+            pw.println("        }");
+            return;
+        }
+        if (type.getKind().isPrimitive()) {
+            pw.println("            final String value = optionValue(in, \"" + anno.shortName()
+                    + "\", \"" + name + "\");");
+            pw.println("            if (value != null) {");
+            pw.println("                instance." + name + " = " + parser(type) + "(value, \""
+                    + name + "\", true);");
+            pw.println("            }");
+            pw.println("        }");
+            return;
+        }
+        pw.println("            final " + boxed + " value = " + cast(type) + "option(in, \""
+                + anno.shortName() + "\", \"" + name + "\", " + classLiteral(type) + ");");
+        pw.println("            if (value != null) {");
+        pw.println("                instance." + name + " = value;");
+        pw.println("            }");
+        pw.println("        }");
+    }
+
+    /**
+     * A dispatcher can only be generated if it can access everything it need
+     * from the same package without reflection.
+     */
+    private boolean isDispatchable(TypeElement type, List<ExecutableElement> methods,
+            List<VariableElement> fields) {
+        final Set<Modifier> modifiers = type.getModifiers();
+        if (type.getNestingKind() != NestingKind.TOP_LEVEL || type.getKind() != ElementKind.CLASS
+                || modifiers.contains(Modifier.ABSTRACT) || !type.getTypeParameters().isEmpty()) {
+            return false;
+        }
+        if (!hasAccessibleConstructor(type)) {
+            return false;
+        }
+        for (ExecutableElement m : methods) {
+            if (m.getModifiers().contains(Modifier.PRIVATE) || !m.getTypeParameters().isEmpty()) {
+                return false;
+            }
+            final List<? extends VariableElement> params = m.getParameters();
+            for (int i = 0; i < params.size(); i++) {
+                final TypeMirror t = params.get(i).asType();
+                if (isMultiValued(t)) {
+                    // only the last parameter can take multiple values
+                    if (i != params.size() - 1 || elementLiterals(t) == null) {
+                        return false;
+                    }
+                } else if (isLines(t)) {
+                    // only the last parameter can read input lines
+                    if (i != params.size() - 1 || linesElement(t) == null) {
+                        return false;
+                    }
+                } else if (!isConvertible(t)) {
+                    return false;
+                }
+            }
+        }
+        for (VariableElement f : fields) {
+            final Set<Modifier> mods = f.getModifiers();
+            if (mods.contains(Modifier.PRIVATE) || mods.contains(Modifier.FINAL)) {
+                return false;
+            }
+            if (isMultiValued(f.asType()) ? elementLiterals(f.asType()) == null
+                    : !isConvertible(f.asType())) {
+                return false;
+            }
+            // inherited fields from other packages are only visible if public
+            final TypeElement owner = (TypeElement) f.getEnclosingElement();
+            if (!packageOf(owner).equals(packageOf(type)) && !mods.contains(Modifier.PUBLIC)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the options of a type may be constrained, which is when the type,
+     * its supertypes or their fields or methods carry Bean Validation annotations.
+     */
+    boolean constrainsOptions(TypeElement type) {
+        for (TypeElement t : supertypes(type)) {
+            if (isConstrained(t)) {
+                return true;
+            }
+            for (Element e : t.getEnclosedElements()) {
+                if ((e.getKind() == ElementKind.FIELD || e.getKind() == ElementKind.METHOD)
+                        && isConstrained(e)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the arguments of a command method may be constrained, which is
+     * when the method, a method that it overrides or their parameters carry Bean
+     * Validation annotations.
+     */
+    boolean constrainsArguments(TypeElement type, ExecutableElement m) {
+        for (TypeElement t : supertypes(type)) {
+            for (ExecutableElement other : ElementFilter.methodsIn(t.getEnclosedElements())) {
+                if (!other.equals(m) && !env.getElementUtils().overrides(m, other, type)) {
+                    continue;
+                }
+                if (isConstrained(other)) {
+                    return true;
+                }
+                for (VariableElement param : other.getParameters()) {
+                    if (isConstrained(param)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the type, its superclasses and the interfaces they implement.
+     */
+    private Set<TypeElement> supertypes(TypeElement type) {
+        final Set<TypeElement> result = new LinkedHashSet<TypeElement>();
+        final List<TypeMirror> pending = new ArrayList<TypeMirror>();
+        pending.add(type.asType());
+        while (!pending.isEmpty()) {
+            final TypeMirror t = pending.remove(pending.size() - 1);
+            if (t.getKind() == TypeKind.DECLARED && result.add((TypeElement) types.asElement(t))) {
+                pending.addAll(types.directSupertypes(t));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the element carry a constraint, a list of constraints or
+     * cascade validation.
+     */
+    private static boolean isConstrained(Element e) {
+        for (AnnotationMirror mirror : e.getAnnotationMirrors()) {
+            final TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+            if (VALID.equals(annotation.getQualifiedName().toString())
+                    || isConstraint(annotation)) {
+                return true;
+            }
+            // constraint.List annotations repeat the constraint they are nested in
+            final Element enclosing = annotation.getEnclosingElement();
+            if (enclosing.getKind() == ElementKind.ANNOTATION_TYPE
+                    && isConstraint((TypeElement) enclosing)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isConstraint(TypeElement annotation) {
+        for (AnnotationMirror mirror : annotation.getAnnotationMirrors()) {
+            final TypeElement meta = (TypeElement) mirror.getAnnotationType().asElement();
+            if (CONSTRAINT.equals(meta.getQualifiedName().toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasAccessibleConstructor(TypeElement type) {
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isConvertible(TypeMirror type) {
+        return type.getKind().isPrimitive() || type.getKind() == TypeKind.DECLARED;
+    }
+
+    private static boolean isStringVarargs(ExecutableElement m, int i) {
+        if (!m.isVarArgs() || i != m.getParameters().size() - 1) {
+            return false;
+        }
+        final TypeMirror t = m.getParameters().get(i).asType();
+        return String.class.getName().equals(((ArrayType) t).getComponentType().toString());
+    }
+
+    /**
+     * @return true for arrays, collections and maps, see {@link MultiValueType}.
+     */
+    private boolean isMultiValued(TypeMirror type) {
+        return type.getKind() == TypeKind.ARRAY || isCollection(type) || isMap(type);
+    }
+
+    /**
+     * @return true for Iterator parameters that read input lines, see {@link InputLines}.
+     */
+    private boolean isLines(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED
+                && types.isSameType(types.erasure(type), erasure(Iterator.class));
+    }
+
+    /**
+     * @return class literal of the element type of an Iterator, or null if not known
+     * until runtime.
+     */
+    private String linesElement(TypeMirror type) {
+        final List<? extends TypeMirror> args = ((DeclaredType) type).getTypeArguments();
+        return elementLiteral(args.size() == 1 ? args.get(0) : null);
+    }
+
+    private boolean isCollection(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED
+                && types.isAssignable(types.erasure(type), erasure(Collection.class))
+                && (types.isAssignable(erasure(ArrayList.class), types.erasure(type))
+                        || types.isAssignable(erasure(LinkedHashSet.class), types.erasure(type)));
+    }
+
+    private boolean isMap(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED
+                && types.isAssignable(types.erasure(type), erasure(Map.class))
+                && types.isAssignable(erasure(LinkedHashMap.class), types.erasure(type));
+    }
+
+    private TypeMirror erasure(Class<?> cls) {
+        return types.erasure(env.getElementUtils().getTypeElement(cls.getName()).asType());
+    }
+
+    /**
+     * Class literals of the element types of a type that take multiple values, which
+     * is the element type of collections and the key and value type of maps. Arrays
+     * have none, their component type is known from the array class.
+     *
+     * @return class literals or null if the type take a single value or have element
+     * types that are not known until runtime.
+     */
+    private List<String> elementLiterals(TypeMirror type) {
+        final List<String> literals = new ArrayList<String>();
+        if (type.getKind() == TypeKind.ARRAY) {
+            final TypeMirror component = ((ArrayType) type).getComponentType();
+            final boolean plain = component.getKind().isPrimitive()
+                    || (component.getKind() == TypeKind.DECLARED
+                    && types.isSameType(component, types.erasure(component)));
+            return plain ? literals : null;
+        }
+        final int count = isCollection(type) ? 1 : isMap(type) ? 2 : 0;
+        if (count == 0) {
+            return null;
+        }
+        final List<? extends TypeMirror> args = ((DeclaredType) type).getTypeArguments();
+        for (int i = 0; i < count; i++) {
+            final TypeMirror arg = args.size() == count ? args.get(i) : null;
+            final String literal = elementLiteral(arg);
+            if (literal == null) {
+                return null;
+            }
+            literals.add(literal);
+        }
+        return literals;
+    }
+
+    /**
+     * Element types are erased, raw, unbounded and Object elements are strings.
+     */
+    private String elementLiteral(TypeMirror arg) {
+        if (arg != null && arg.getKind() == TypeKind.WILDCARD) {
+            arg = ((WildcardType) arg).getExtendsBound();
+        }
+        if (arg == null) {
+            return String.class.getName() + ".class";
+        }
+        if (arg.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        final String name = types.erasure(arg).toString();
+        return (Object.class.getName().equals(name) ? String.class.getName() : name) + ".class";
+    }
+
+    private static String prefixed(List<String> values) {
+        final StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            sb.append(", ").append(value);
+        }
+        return sb.toString();
+    }
+
+    private static List<ExecutableElement> commandMethods(TypeElement type) {
+        final List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+        for (ExecutableElement m : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (m.getAnnotation(CliCmd.class) != null) {
+                methods.add(m);
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * @return option fields of the type and its superclasses.
+     */
+    List<VariableElement> optionFields(TypeElement type) {
+        final List<VariableElement> fields = new ArrayList<VariableElement>();
+        for (TypeElement t = type; t != null; t = superclass(t)) {
+            for (VariableElement f : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+                if (f.getAnnotation(CliOption.class) != null) {
+                    fields.add(f);
+                }
+            }
+        }
+        return fields;
+    }
+
+    private TypeElement superclass(TypeElement type) {
+        final TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        final TypeElement element = (TypeElement) types.asElement(superclass);
+        return Object.class.getName().equals(element.getQualifiedName().toString()) ? null
+                : element;
+    }
+
+    /**
+     * Name of the CliDispatcher method that parse a primitive type, like parseInt.
+     */
+    private static String parser(TypeMirror type) {
+        final String name = primitive(type);
+        return "parse" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Keyword of a primitive type, without any type annotations.
+     */
+    private static String primitive(TypeMirror type) {
+        return type.getKind().name().toLowerCase(Locale.ENGLISH);
+    }
+
+    private TypeMirror boxed(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return types.boxedClass(types.getPrimitiveType(type.getKind())).asType();
+        }
+        return type;
+    }
+
+    /**
+     * Class literal of the erasure, primitives are converted through their wrapper.
+     */
+    private String classLiteral(TypeMirror type) {
+        return types.erasure(boxed(type)) + ".class";
+    }
+
+    /**
+     * Parameterized types need a cast from their erasure.
+     */
+    private String cast(TypeMirror type) {
+        if (type.getKind().isPrimitive() || types.isSameType(type, types.erasure(type))) {
+            return "";
+        }
+        return "(" + type + ") ";
+    }
+
+    private String packageOf(TypeElement type) {
+        final PackageElement pkg = env.getElementUtils().getPackageOf(type);
+        return pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+    }
+
+    private static String join(List<String> values) {
+        final StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
@@ -13,131 +13,373 @@
  */
 package org.deephacks.tools4j.cli;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 
+import org.deephacks.tools4j.cli.Command.Option;
+
 /**
- * GNUishParser is responsible for parsing the command line arguments more or less 
- * according to the GNU Argument Syntax: 
- * 
+ * GNUishParser is responsible for parsing the command line arguments more or less
+ * according to the GNU Argument Syntax:
+ *
  * http://www.gnu.org/s/hello/manual/libc/Argument-Syntax.html.
- * 
+ *
+ * Arguments given as @file are first replaced with the words of the file, see
+ * {@link ArgumentFiles}.
+ *
+ * Options are parsed in a single forward pass, driven by the {@link OptionSpec} of
+ * the command. Declared flags never take the next word as value and declared options
+ * with a value always do, even if it starts with a hyphen. Options that are not
+ * declared, or whose arity is not known, take the next word unless it looks like
+ * another option. A lone "-" and negative numbers that are not declared options are
+ * arguments, and every word after "--" is an argument.
+ *
+ * Options and arguments are kept as positions into the words given, strings are
+ * only created when an option value is part of a word, like --name=value, and is
+ * asked for. Parsers returned by {@link #parseCommand(String[])} are reused by the
+ * thread once released, which makes repeated parsing, like in batch mode, free of
+ * allocations.
+ *
  * Inspiration from http://commons.apache.org/cli
  */
 final class GNUishParser {
-    private final Map<String, String> shortOpts = new HashMap<String, String>();
-    private final Map<String, String> longOpts = new HashMap<String, String>();
-    private final List<String> arguments = new ArrayList<String>();
-    private String command;
+    /** arity of options that are not declared by the command */
+    static final int UNDECLARED = 0;
+    /** arity of declared options that take no value */
+    static final int FLAG = 1;
+    /** arity of declared options that take a value */
+    static final int VALUE = 2;
+    /** arity of declared options where it is not known if they take a value */
+    static final int UNKNOWN = 3;
+    /** a released parser of each thread, null while it is used */
+    private static final ThreadLocal<GNUishParser> POOL = new ThreadLocal<GNUishParser>();
+    /** number of options or arguments a released parser keep room for */
+    private static final int POOLED_CAPACITY = 1024;
+    private static final int INITIAL_CAPACITY = 16;
+    // an option is stored as STRIDE ints in opts, each at the offset given below
+    /** position of the word of the option */
+    private static final int WORD = 0;
+    /** position of the first character of the option name within its word */
+    private static final int NAME_START = 1;
+    /** position after the last character of the option name within its word */
+    private static final int NAME_END = 2;
+    /** position of the word of the value, -1 if the option was given without value */
+    private static final int VALUE_WORD = 3;
+    /** position of the first character of the value within its word */
+    private static final int VALUE_START = 4;
+    private static final int STRIDE = 5;
     private static String VERBOSE_LONG_OPT = "verbose";
     private static String DEBUG_LONG_OPT = "debug";
     private static String HELP_LONG_OPT = "help";
+    private static String PROFILE_STARTUP_LONG_OPT = "profile-startup";
+
+    /** words of the command line, the command word first */
+    private String[] words;
+    private String command;
+    /** number of words that name the command, more than one for grouped commands */
+    private int commandWords = 1;
+    /** true when the options have been parsed */
+    private boolean parsed;
+    /** options in the order given */
+    private int[] opts = new int[INITIAL_CAPACITY * STRIDE];
+    private int optCount;
+    /** position of the word of each argument */
+    private int[] args = new int[INITIAL_CAPACITY];
+    private int argCount;
+    /** arguments as strings, backed by the words */
+    private final List<String> arguments = new AbstractList<String>() {
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= argCount) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + argCount);
+            }
+            return words[args[index]];
+        }
+
+        @Override
+        public int size() {
+            return argCount;
+        }
+    };
 
     private GNUishParser() {
     }
 
+    /**
+     * Parse the command, options and arguments without knowing the options of
+     * the command.
+     */
     static GNUishParser parse(String[] terminalArgs) {
         final GNUishParser p = new GNUishParser();
-        if (terminalArgs == null || terminalArgs.length == 0) {
-            return p;
-        }
-        p.command = terminalArgs[0].trim();
-        terminalArgs = Arrays.copyOfRange(terminalArgs, 1, terminalArgs.length);
-
-        // we strip opts after parsing
-        terminalArgs = p.parseOpts(terminalArgs);
+        p.setWords(terminalArgs);
+        p.parseOpts(OptionSpec.NONE);
+        return p;
+    }
 
-        // arguments is what's left
-        p.arguments.addAll(Arrays.asList(terminalArgs));
+    /**
+     * Parse the command word only. Options and arguments are parsed by
+     * {@link #parseOpts(OptionSpec)} once the options of the command are known.
+     * <p>
+     * The parser is reused by the current thread once given to {@link #release()},
+     * a new parser is created if the parser of the thread is still used.
+     */
+    static GNUishParser parseCommand(String[] terminalArgs) {
+        GNUishParser p = POOL.get();
+        if (p != null) {
+            POOL.set(null);
+        } else {
+            p = new GNUishParser();
+        }
+        p.setWords(terminalArgs);
         return p;
     }
 
+    private void setWords(String[] terminalArgs) {
+        if (terminalArgs == null || terminalArgs.length == 0) {
+            return;
+        }
+        terminalArgs = ArgumentFiles.expand(terminalArgs);
+        if (terminalArgs.length == 0) {
+            return;
+        }
+        command = terminalArgs[0].trim();
+        words = terminalArgs;
+    }
+
     /**
-     * Parse the options for the command.
-     * 
-     * @param args includes the options and arguments, command word have been stripped.
-     * @return the remaining terminal args, if any
+     * Extend the command with the next word, when the command is a group of
+     * commands, like "db" in "db migrate".
+     *
+     * @return false if the next word is an option or there are no more words.
      */
-    private String[] parseOpts(String[] args) {
-
-        if (args == null || args.length == 0) {
-            return new String[0];
-        }
-        final List<String> remainingArgs = new ArrayList<String>();
-        final List<String> argsList = Arrays.asList(args);
-        final ListIterator<String> argsIt = argsList.listIterator();
-
-        while (argsIt.hasNext()) {
-            String word = argsIt.next();
-            if (word.startsWith("--")) {
-                // long option --foo
-                final String option = stripLeadingHyphens(word);
-                if (VERBOSE_LONG_OPT.equals(option)) {
-                    longOpts.put(option, "true");
-                } else if (DEBUG_LONG_OPT.equals(option)) {
-                    longOpts.put(option, "true");
-                } else if (HELP_LONG_OPT.equals(option)) {
-                    longOpts.put(option, "true");
-                } else {
-                    final String arg = parseOptionArg(option, argsIt);
-                    longOpts.put(option, arg);
-                }
+    boolean nextCommandWord() {
+        if (parsed || words == null || commandWords >= words.length
+                || words[commandWords].startsWith("-")) {
+            return false;
+        }
+        command = command + " " + words[commandWords++].trim();
+        return true;
+    }
 
-            } else if (word.startsWith("-")) {
-                String options = stripLeadingHyphens(word);
+    /**
+     * Let the current thread reuse this parser. Neither this parser nor its
+     * arguments may be used afterwards.
+     */
+    void release() {
+        words = null;
+        command = null;
+        commandWords = 1;
+        parsed = false;
+        optCount = 0;
+        argCount = 0;
+        if (opts.length > POOLED_CAPACITY * STRIDE) {
+            opts = new int[INITIAL_CAPACITY * STRIDE];
+        }
+        if (args.length > POOLED_CAPACITY) {
+            args = new int[INITIAL_CAPACITY];
+        }
+        POOL.set(this);
+    }
 
-                // single short option -f
-                if (options.length() == 1) {
-                    // only slurp argument if option is argumented
-                    final String arg = parseOptionArg(options, argsIt);
-                    shortOpts.put(options, arg);
-                    continue;
+    /**
+     * Parse the options and arguments that follow the command word.
+     *
+     * @param spec options of the command.
+     * @throws CliException if an option that take a value is the last word.
+     */
+    void parseOpts(OptionSpec spec) {
+        final String[] words = this.words;
+        if (parsed || words == null) {
+            return;
+        }
+        parsed = true;
+        int i = commandWords;
+        while (i < words.length) {
+            final int at = i++;
+            final String word = words[at];
+            final int length = word.length();
+            if (length < 2 || word.charAt(0) != '-') {
+                addArgument(at);
+            } else if (word.charAt(1) == '-') {
+                if (length == 2) {
+                    // -- ends the options
+                    while (i < words.length) {
+                        addArgument(i++);
+                    }
+                    return;
                 }
-                // multiple short options -fxy, 
-                // treat as non-argumented java.lang.Boolean variables, no slurp 
-                for (int i = 0; i < options.length(); i++) {
-                    final String option = Character.toString(options.charAt(i));
-                    shortOpts.put(option, "true");
+                // long option --foo or --foo=value
+                final int separator = word.indexOf('=', 2);
+                final int end = separator < 0 ? length : separator;
+                if (isReserved(word, end)) {
+                    addOption(at, 2, end, -1, 0);
+                } else if (separator >= 0) {
+                    addOption(at, 2, end, at, separator + 1);
+                } else {
+                    final int value = valueWord(word, spec.longArity(word, 2, end), i);
+                    if (value >= 0) {
+                        i++;
+                    }
+                    addOption(at, 2, end, value, 0);
                 }
             } else {
-                remainingArgs.add(word);
+                final int arity = spec.shortArity(word, 1, length);
+                if (arity == UNDECLARED && Character.isDigit(word.charAt(1))) {
+                    // negative number
+                    addArgument(at);
+                } else if (length == 2 || arity != UNDECLARED) {
+                    // single short option -f
+                    final int value = valueWord(word, arity, i);
+                    if (value >= 0) {
+                        i++;
+                    }
+                    addOption(at, 1, length, value, 0);
+                } else {
+                    i = parseShortOpts(at, spec, i);
+                }
             }
         }
-        return remainingArgs.toArray(new String[0]);
     }
 
-    private String parseOptionArg(String option, ListIterator<String> argsIt) {
-        if (!argsIt.hasNext()) {
-            // no argument. assume boolean opt
-            return "true";
+    /**
+     * Parse multiple short options -fxy. Options are flags until an option that take
+     * a value, which take the rest of the word or else the next word. Options that
+     * are not declared are treated as flags.
+     *
+     * @return position of the next word to parse.
+     */
+    private int parseShortOpts(int at, OptionSpec spec, int next) {
+        final String word = words[at];
+        for (int i = 1; i < word.length(); i++) {
+            if (spec.shortArity(word.charAt(i)) != VALUE) {
+                addOption(at, i, i + 1, -1, 0);
+            } else if (i + 1 < word.length()) {
+                addOption(at, i, i + 1, at, i + 1);
+                return next;
+            } else {
+                addOption(at, i, i + 1, valueWord(word, VALUE, next), 0);
+                return next + 1;
+            }
         }
+        return next;
+    }
 
-        String arg = argsIt.next();
-        // the token following the option is a new option (not an argument)
-        // digits following the hyphen are treated as arguments
+    /**
+     * @param word option as given by the user.
+     * @param next position of the word after the option.
+     * @return position of the word that is the value of the option, -1 if the
+     * option take no value.
+     */
+    private int valueWord(String word, int arity, int next) {
+        if (arity == FLAG) {
+            return -1;
+        } else if (arity == VALUE) {
+            if (next >= words.length) {
+                throw new CliException("Option " + word + " requires a value.");
+            }
+            return next;
+        } else if (next >= words.length) {
+            // no argument, assume boolean opt
+            return -1;
+        }
+        final String arg = words[next];
+        // the next word is a new option, digits following the hyphen are values
         if (arg.startsWith("-") && arg.length() > 1 && !Character.isDigit(arg.charAt(1))) {
-            // arg was the next opt, take one step back 
-            argsIt.previous();
-            // assume argument for opt is a boolean 
-            arg = "true";
+            return -1;
+        }
+        return next;
+    }
+
+    private void addOption(int word, int nameStart, int nameEnd, int valueWord,
+            int valueStart) {
+        int pos = optCount * STRIDE;
+        if (pos == opts.length) {
+            opts = Arrays.copyOf(opts, pos * 2);
+        }
+        opts[pos + WORD] = word;
+        opts[pos + NAME_START] = nameStart;
+        opts[pos + NAME_END] = nameEnd;
+        opts[pos + VALUE_WORD] = valueWord;
+        opts[pos + VALUE_START] = valueStart;
+        optCount++;
+    }
+
+    private void addArgument(int word) {
+        if (argCount == args.length) {
+            args = Arrays.copyOf(args, argCount * 2);
+        }
+        args[argCount++] = word;
+    }
+
+    private static boolean isReserved(String word, int end) {
+        return isName(word, 2, end, VERBOSE_LONG_OPT) || isName(word, 2, end, DEBUG_LONG_OPT)
+                || isName(word, 2, end, HELP_LONG_OPT)
+                || isName(word, 2, end, PROFILE_STARTUP_LONG_OPT);
+    }
+
+    private static boolean isName(String word, int start, int end, String name) {
+        return end - start == name.length() && word.startsWith(name, start);
+    }
+
+    /**
+     * @return true if the option at a position of opts is a long option.
+     */
+    private boolean isLong(int pos) {
+        // only long options have a hyphen in front of the name
+        return words[opts[pos + WORD]].charAt(1) == '-';
+    }
+
+    /**
+     * @return true if the option at a position of opts has a name.
+     */
+    private boolean is(int pos, String name, boolean isLong) {
+        return name != null && isLong(pos) == isLong
+                && isName(words[opts[pos + WORD]], opts[pos + NAME_START], opts[pos + NAME_END],
+                        name);
+    }
+
+    /**
+     * @return value of the option at a position of opts.
+     */
+    private String value(int pos) {
+        final int word = opts[pos + VALUE_WORD];
+        if (word < 0) {
+            return "true";
         }
-        return arg;
+        final int start = opts[pos + VALUE_START];
+        return start == 0 ? words[word] : words[word].substring(start);
     }
 
-    private static String stripLeadingHyphens(String str) {
-        if (str == null) {
-            return null;
+    /**
+     * @return the last value of an option, null if not given.
+     */
+    private String lastValue(String name, boolean isLong) {
+        for (int pos = (optCount - 1) * STRIDE; pos >= 0; pos -= STRIDE) {
+            if (is(pos, name, isLong)) {
+                return value(pos);
+            }
         }
-        if (str.startsWith("--")) {
-            return str.substring(2, str.length());
-        } else if (str.startsWith("-")) {
-            return str.substring(1, str.length());
+        return null;
+    }
+
+    /**
+     * @return the last value of every option of a kind, by name.
+     */
+    private Map<String, String> lastValues(boolean isLong) {
+        final Map<String, String> values = new HashMap<String, String>();
+        for (int pos = 0; pos < optCount * STRIDE; pos += STRIDE) {
+            if (isLong(pos) == isLong) {
+                values.put(words[opts[pos + WORD]].substring(opts[pos + NAME_START],
+                        opts[pos + NAME_END]), value(pos));
+            }
         }
-        return str;
+        return values;
     }
 
     String getCommand() {
@@ -149,23 +391,38 @@ final class GNUishParser {
     }
 
     Map<String, String> getShortOpts() {
-        return shortOpts;
+        return lastValues(false);
     }
 
     String getShortOpt(String id) {
-        return shortOpts.get(id);
+        return lastValue(id, false);
     }
 
     Map<String, String> getLongOpts() {
-        return longOpts;
+        return lastValues(true);
     }
 
     String getLongOpt(String id) {
-        return longOpts.get(id);
+        return lastValue(id, true);
+    }
+
+    /**
+     * @return every value of an option, given by either its short or long name,
+     * in command line order.
+     */
+    List<String> getOptValues(String shortName, String longName) {
+        final List<String> values = new ArrayList<String>();
+        for (int pos = 0; pos < optCount * STRIDE; pos += STRIDE) {
+            if (is(pos, shortName, false) || is(pos, longName, true)) {
+                values.add(value(pos));
+            }
+        }
+        return values;
     }
 
     public static List<String> getReservedNonArgumentOptions() {
-        return Arrays.asList(VERBOSE_LONG_OPT, DEBUG_LONG_OPT, HELP_LONG_OPT);
+        return Arrays.asList(VERBOSE_LONG_OPT, DEBUG_LONG_OPT, HELP_LONG_OPT,
+                PROFILE_STARTUP_LONG_OPT);
     }
 
     public boolean verbose() {
@@ -189,4 +446,144 @@ final class GNUishParser {
         return false;
     }
 
+    public boolean profileStartup() {
+        if (getLongOpt(PROFILE_STARTUP_LONG_OPT) != null) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Measure the heap allocated by the current thread to parse a command line the
+     * way {@link CliMain} does, with a parser that is reused between parses.
+     *
+     * @param parses number of times to parse the command line.
+     * @return average number of bytes allocated per parse, -1 if the JVM does not
+     * measure allocations.
+     */
+    static double allocationPerParse(String[] terminalArgs, OptionSpec spec, int parses) {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported()
+                || !allocations.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        final long thread = Thread.currentThread().getId();
+        final long start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < parses; i++) {
+            final GNUishParser p = parseCommand(terminalArgs);
+            p.parseOpts(spec);
+            p.release();
+        }
+        return (allocations.getThreadAllocatedBytes(thread) - start) / (double) parses;
+    }
+
+    /**
+     * OptionSpec is responsible for looking up the arity of the options of a command
+     * by short and long name. It is compiled once per command and never changed.
+     * <p>
+     * Names are kept in open addressing hash tables that are searched with a range
+     * of the word given by the user, so that no substrings are created.
+     */
+    static final class OptionSpec {
+        /** spec of commands that declare no options */
+        static final OptionSpec NONE = new OptionSpec(0);
+        private final String[] shortNames;
+        private final byte[] shortArities;
+        private final String[] longNames;
+        private final byte[] longArities;
+        /** arity of single character short names, looked up within -fxy */
+        private final byte[] shortChars = new byte[128];
+
+        private OptionSpec(int options) {
+            int size = 2;
+            while (size < options * 2) {
+                size <<= 1;
+            }
+            shortNames = new String[size];
+            shortArities = new byte[size];
+            longNames = new String[size];
+            longArities = new byte[size];
+        }
+
+        static OptionSpec of(List<Option> options) {
+            if (options.isEmpty()) {
+                return NONE;
+            }
+            final OptionSpec spec = new OptionSpec(options.size());
+            for (Option opt : options) {
+                final Boolean flag = opt.getFlag();
+                final int arity = flag == null ? UNKNOWN : flag ? FLAG : VALUE;
+                final String shortName = opt.getShortName();
+                if (shortName != null && !shortName.isEmpty()) {
+                    put(spec.shortNames, spec.shortArities, shortName, arity);
+                    if (shortName.length() == 1 && shortName.charAt(0) < spec.shortChars.length) {
+                        spec.shortChars[shortName.charAt(0)] = (byte) arity;
+                    }
+                }
+                if (opt.getLongName() != null) {
+                    put(spec.longNames, spec.longArities, opt.getLongName(), arity);
+                }
+            }
+            return spec;
+        }
+
+        /**
+         * @return arity of the short option named by a range of a word.
+         */
+        int shortArity(String word, int start, int end) {
+            final int slot = find(shortNames, word, start, end);
+            return slot < 0 ? UNDECLARED : shortArities[slot];
+        }
+
+        int shortArity(char name) {
+            if (name < shortChars.length) {
+                return shortChars[name];
+            }
+            final String word = String.valueOf(name);
+            return shortArity(word, 0, 1);
+        }
+
+        /**
+         * @return arity of the long option named by a range of a word.
+         */
+        int longArity(String word, int start, int end) {
+            final int slot = find(longNames, word, start, end);
+            return slot < 0 ? UNDECLARED : longArities[slot];
+        }
+
+        private static void put(String[] names, byte[] arities, String name, int arity) {
+            int slot = find(names, name, 0, name.length());
+            if (slot < 0) {
+                slot = ~slot;
+                names[slot] = name;
+            }
+            arities[slot] = (byte) arity;
+        }
+
+        /**
+         * @return slot of a name given as a range of a word, or the complement of
+         * the free slot where it belongs.
+         */
+        private static int find(String[] names, String word, int start, int end) {
+            // same as String.hashCode of the range
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + word.charAt(i);
+            }
+            final int mask = names.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (names[slot] != null) {
+                if (isName(word, start, end, names[slot])) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return ~slot;
+        }
+    }
 }
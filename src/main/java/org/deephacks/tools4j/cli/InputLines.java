@@ -0,0 +1,286 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.deephacks.tools4j.cli.Conversion.ConversionException;
+
+/**
+ * InputLines is responsible for feeding the lines of standard input, or of a file, to
+ * a command parameter of type Iterator, one line at a time.
+ * <p>
+ * Lines of a file are read by a background thread using a large buffer and handed
+ * over in chunks through a bounded queue, so memory use does not depend on the size
+ * of the input. Standard input is read when lines are asked for, through a reader that
+ * is kept per stream, so that lines not taken by one command are left for the next
+ * command that reads the same standard input. Each line is converted to the element
+ * type of the iterator when it is asked for. Lines are UTF-8 encoded.
+ * <p>
+ * Iterators are closed once the command method return, which stop the background
+ * thread and close the file, also when the command did not read every line.
+ */
+final class InputLines<T> implements Iterator<T>, Closeable {
+    /** argument that stand for standard input */
+    static final String STDIN = "-";
+    /** size of the buffer that input is read through */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** maximum number of lines handed over at a time */
+    private static final int CHUNK_LINES = 256;
+    /** maximum number of chunks read ahead of the command */
+    private static final int QUEUE_CHUNKS = 16;
+    /** marks the end of input in the queue */
+    private static final List<String> END = new ArrayList<String>(0);
+    /** handle conversion of command input strings to objects */
+    private static final Conversion c = Conversion.get();
+    /** readers of standard input, which keep what was read ahead for later commands */
+    private static final Map<InputStream, BufferedReader> STDIN_READERS =
+            new WeakHashMap<InputStream, BufferedReader>();
+
+    /** chunks of lines, END or the IOException that stopped reading */
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_CHUNKS);
+    private final Class<T> type;
+    /** name of the argument */
+    private final String name;
+    private List<String> chunk = Collections.emptyList();
+    private int position;
+    private boolean done;
+    /** file being read in the background, closed with the iterator */
+    private InputStream in;
+    private Thread reader;
+    /** standard input being read on demand, never closed */
+    private BufferedReader stdin;
+
+    private InputLines(Class<T> type, String name) {
+        this.type = type;
+        this.name = name;
+    }
+
+    /**
+     * Start reading lines in the background.
+     *
+     * @param source path of a file relative to the working directory of the user,
+     * null or "-" for standard input of the user, see {@link CliEnvironment}.
+     * @param type element type of the iterator.
+     * @param name name of the argument.
+     * @throws CliException if the file does not exist.
+     */
+    static <T> InputLines<T> open(String source, Class<T> type, String name) {
+        final InputLines<T> lines = new InputLines<T>(type, name);
+        if (source == null || STDIN.equals(source)) {
+            lines.stdin = stdin(CliEnvironment.getIn());
+            return lines;
+        }
+        try {
+            lines.in = new FileInputStream(CliEnvironment.resolve(source));
+        } catch (FileNotFoundException e) {
+            throw new CliException("Cannot read " + name + " from " + source, e);
+        }
+        lines.reader = new Thread(lines.new Reader(lines.in), "tools4j-cli-input");
+        lines.reader.setDaemon(true);
+        lines.reader.start();
+        return lines;
+    }
+
+    /**
+     * Close the value of a command parameter if it read input lines.
+     */
+    static void close(Object value) {
+        if (value instanceof InputLines) {
+            ((InputLines<?>) value).close();
+        }
+    }
+
+    private static BufferedReader stdin(InputStream in) {
+        synchronized (STDIN_READERS) {
+            BufferedReader reader = STDIN_READERS.get(in);
+            if (reader == null) {
+                reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8),
+                        BUFFER_SIZE);
+                STDIN_READERS.put(in, reader);
+            }
+            return reader;
+        }
+    }
+
+    /**
+     * @return the element type of an Iterator parameter, strings for raw and unbounded
+     * types, or null if the parameter is not an Iterator.
+     */
+    static Class<?> elementOf(Class<?> type, Type generic) {
+        if (type != Iterator.class) {
+            return null;
+        }
+        Type arg = generic instanceof ParameterizedType ? ((ParameterizedType) generic)
+                .getActualTypeArguments()[0] : Object.class;
+        if (arg instanceof WildcardType) {
+            arg = ((WildcardType) arg).getUpperBounds()[0];
+        }
+        if (arg instanceof ParameterizedType) {
+            arg = ((ParameterizedType) arg).getRawType();
+        }
+        return arg instanceof Class && arg != Object.class ? (Class<?>) arg : String.class;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean hasNext() {
+        while (!done && position == chunk.size()) {
+            final Object next = stdin != null ? readStdin() : take();
+            if (next == END) {
+                done = true;
+            } else if (next instanceof IOException) {
+                done = true;
+                throw new CliException("Cannot read " + name, (IOException) next);
+            } else {
+                chunk = (List<String>) next;
+                position = 0;
+            }
+        }
+        return !done;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final String line = chunk.get(position++);
+        if (type == String.class) {
+            return type.cast(line);
+        }
+        try {
+            return c.convert(line, type);
+        } catch (ConversionException e) {
+            throw CliException.WRONG_ARG_TYPE(name, type.getName(), line);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop reading and close the file. Standard input is left open and lines that
+     * were not taken are left for a later command.
+     */
+    @Override
+    public void close() {
+        done = true;
+        if (reader == null) {
+            return;
+        }
+        reader.interrupt();
+        try {
+            in.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * @return next line of standard input as a chunk, END or the exception that
+     * stopped reading.
+     */
+    private Object readStdin() {
+        try {
+            final String line = stdin.readLine();
+            return line != null ? Collections.singletonList(line) : END;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    private Object take() {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CliException("Interrupted while reading " + name, e);
+        }
+    }
+
+    /**
+     * Read lines of a file into the queue until the file ends.
+     */
+    private final class Reader implements Runnable {
+        private final BufferedReader reader;
+
+        private Reader(InputStream in) {
+            this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8),
+                    BUFFER_SIZE);
+        }
+
+        @Override
+        public void run() {
+            try {
+                queue.put(read());
+            } catch (InterruptedException e) {
+                // nobody is waiting for the lines
+            }
+        }
+
+        /**
+         * @return END or the exception that stopped reading.
+         */
+        private Object read() throws InterruptedException {
+            try {
+                try {
+                    List<String> lines = new ArrayList<String>(CHUNK_LINES);
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lines.add(line);
+                        // hand over what is read before blocking on more input
+                        if (lines.size() == CHUNK_LINES || !reader.ready()) {
+                            queue.put(lines);
+                            lines = new ArrayList<String>(CHUNK_LINES);
+                        }
+                    }
+                    if (!lines.isEmpty()) {
+                        queue.put(lines);
+                    }
+                } finally {
+                    reader.close();
+                }
+                return END;
+            } catch (IOException e) {
+                if (Thread.interrupted()) {
+                    // closed while reading
+                    throw new InterruptedException();
+                }
+                return e;
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.deephacks.tools4j.cli.Conversion.ConversionException;
+
+/**
+ * MultiValueType is responsible for converting the values of a parameter or option
+ * that take multiple values. These are arrays, such as varargs, collections that
+ * an ArrayList or LinkedHashSet can be assigned to, like List, Set and Collection, and
+ * maps that a LinkedHashMap can be assigned to, which are given as key=value.
+ * <p>
+ * Elements are converted in a single pass into a collection that is sized up front.
+ * The element type is taken from the generic declaration, raw and unbounded types
+ * take strings. Values of int, long and double arrays are parsed straight into the
+ * array, without creating wrapper objects.
+ * <p>
+ * Very large numbers of values, such as file names fed by xargs, are converted in
+ * parallel using fork/join when there are at least as many as the system property
+ * {@value #PARALLEL_THRESHOLD_PROPERTY}, 10000 by default and 0 to never convert in
+ * parallel. Converters must be thread safe. Values keep their order and the first
+ * value that cannot be converted is reported, the same as when converted in sequence.
+ */
+final class MultiValueType {
+    /** system property with the number of values from which values are converted in parallel */
+    static final String PARALLEL_THRESHOLD_PROPERTY = "tools4j.cli.parallel.threshold";
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 10000;
+    /** handle conversion of command input strings to objects */
+    private static final Conversion c = Conversion.get();
+
+    private final Class<?> type;
+    /** component, element or map value type */
+    private final Class<?> element;
+    /** map key type, null if not a map */
+    private final Class<?> key;
+
+    private MultiValueType(Class<?> type, Class<?> element, Class<?> key) {
+        this.type = type;
+        this.element = element;
+        this.key = key;
+    }
+
+    /**
+     * @param type declared class of a parameter or field.
+     * @param generic declared generic type of a parameter or field.
+     * @return the type or null if the type take a single value.
+     */
+    static MultiValueType of(Class<?> type, Type generic) {
+        if (type.isArray()) {
+            return new MultiValueType(type, type.getComponentType(), null);
+        }
+        final Type[] args = generic instanceof ParameterizedType ? ((ParameterizedType) generic)
+                .getActualTypeArguments() : new Type[0];
+        if (isCollection(type)) {
+            return new MultiValueType(type, args.length == 1 ? erasure(args[0]) : String.class,
+                    null);
+        } else if (isMap(type)) {
+            return args.length == 2 ? new MultiValueType(type, erasure(args[1]),
+                    erasure(args[0])) : new MultiValueType(type, String.class, String.class);
+        }
+        return null;
+    }
+
+    /**
+     * @param type declared class of a parameter or field.
+     * @param elements element type of collections, key and value type of maps.
+     */
+    static MultiValueType of(Class<?> type, Class<?>... elements) {
+        if (type.isArray()) {
+            return new MultiValueType(type, type.getComponentType(), null);
+        } else if (isMap(type)) {
+            return new MultiValueType(type, elements[1], elements[0]);
+        }
+        return new MultiValueType(type, elements[0], null);
+    }
+
+    /**
+     * @return true if values of the class are collected into an ArrayList or LinkedHashSet.
+     */
+    static boolean isCollection(Class<?> type) {
+        return Collection.class.isAssignableFrom(type)
+                && (type.isAssignableFrom(ArrayList.class)
+                        || type.isAssignableFrom(LinkedHashSet.class));
+    }
+
+    /**
+     * @return true if values of the class are collected into a LinkedHashMap.
+     */
+    static boolean isMap(Class<?> type) {
+        return Map.class.isAssignableFrom(type) && type.isAssignableFrom(LinkedHashMap.class);
+    }
+
+    /**
+     * Convert all values.
+     *
+     * @param name name of the argument or long name of the option.
+     * @param option true if the values are given to an option.
+     * @throws CliException if a value cannot be converted.
+     */
+    Object convert(List<String> values, String name, boolean option) {
+        final int size = values.size();
+        if (type.isArray() && element == String.class) {
+            return values.toArray(new String[size]);
+        } else if (element == int.class || element == long.class || element == double.class) {
+            return convertPrimitives(values, name, option);
+        }
+        final int threshold = Integer.getInteger(PARALLEL_THRESHOLD_PROPERTY,
+                DEFAULT_PARALLEL_THRESHOLD);
+        // elements converted in parallel, null if converted in sequence below
+        final Object[] elements = threshold > 0 && size >= threshold
+                && Runtime.getRuntime().availableProcessors() > 1 ? convertParallel(values,
+                name, option) : null;
+        if (type.isArray()) {
+            final Object array = Array.newInstance(element, size);
+            for (int i = 0; i < size; i++) {
+                Array.set(array, i, elements != null ? elements[i] : element(values.get(i),
+                        name, option));
+            }
+            return array;
+        } else if (key != null) {
+            final Map<Object, Object> result = new LinkedHashMap<Object, Object>(capacity(size));
+            for (int i = 0; i < size; i++) {
+                final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) (elements != null ? elements[i]
+                        : element(values.get(i), name, option));
+                result.put(entry.getKey(), entry.getValue());
+            }
+            return result;
+        }
+        final Collection<Object> result = type.isAssignableFrom(ArrayList.class)
+                ? new ArrayList<Object>(size) : new LinkedHashSet<Object>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            result.add(elements != null ? elements[i] : element(values.get(i), name, option));
+        }
+        return result;
+    }
+
+    /**
+     * Convert a single value, into a map entry if this is a map.
+     */
+    private Object element(String value, String name, boolean option) {
+        if (key == null) {
+            return convert(value, element, name, option);
+        }
+        final int separator = value.indexOf('=');
+        if (separator < 0) {
+            throw wrongType(value, name, option);
+        }
+        return new AbstractMap.SimpleImmutableEntry<Object, Object>(convert(value.substring(0,
+                separator), key, name, option), convert(value.substring(separator + 1),
+                element, name, option));
+    }
+
+    /**
+     * Parse values straight into an int, long or double array, without wrapper objects.
+     */
+    private Object convertPrimitives(List<String> values, String name, boolean option) {
+        final int size = values.size();
+        int i = 0;
+        try {
+            if (element == int.class) {
+                final int[] array = new int[size];
+                for (; i < size; i++) {
+                    array[i] = (int) Primitives.parseInteger(values.get(i), Integer.MIN_VALUE,
+                            Integer.MAX_VALUE, int.class);
+                }
+                return array;
+            } else if (element == long.class) {
+                final long[] array = new long[size];
+                for (; i < size; i++) {
+                    array[i] = Primitives.parseInteger(values.get(i), Long.MIN_VALUE,
+                            Long.MAX_VALUE, long.class);
+                }
+                return array;
+            }
+            final double[] array = new double[size];
+            for (; i < size; i++) {
+                array[i] = Primitives.parseDouble(values.get(i));
+            }
+            return array;
+        } catch (ConversionException e) {
+            throw wrongType(values.get(i), name, option);
+        }
+    }
+
+    private Object[] convertParallel(List<String> values, String name, boolean option) {
+        final Object[] elements = new Object[values.size()];
+        final Failure failure = new Failure();
+        final int leaf = Math.max(256, values.size() / (Parallel.POOL.getParallelism() * 4));
+        Parallel.POOL.invoke(new ConvertTask(values, elements, 0, elements.length, leaf, name,
+                option, failure));
+        if (failure.exception != null) {
+            throw failure.exception;
+        }
+        return elements;
+    }
+
+    /**
+     * Convert a range of values, split in halves until the range is small enough.
+     */
+    private final class ConvertTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<String> values;
+        private final Object[] elements;
+        private final int from;
+        private final int to;
+        private final int leaf;
+        private final String name;
+        private final boolean option;
+        private final Failure failure;
+
+        private ConvertTask(List<String> values, Object[] elements, int from, int to, int leaf,
+                String name, boolean option, Failure failure) {
+            this.values = values;
+            this.elements = elements;
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+            this.name = name;
+            this.option = option;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > leaf) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ConvertTask(values, elements, from, middle, leaf, name, option,
+                        failure), new ConvertTask(values, elements, middle, to, leaf, name,
+                        option, failure));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                if (failure.position < i) {
+                    // an earlier value already failed
+                    return;
+                }
+                try {
+                    elements[i] = element(values.get(i), name, option);
+                } catch (CliException e) {
+                    failure.record(i, e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The failure of the value with the lowest position.
+     */
+    private static final class Failure {
+        private volatile int position = Integer.MAX_VALUE;
+        private CliException exception;
+
+        synchronized void record(int position, CliException exception) {
+            if (position < this.position) {
+                this.position = position;
+                this.exception = exception;
+            }
+        }
+    }
+
+    /**
+     * Pool of the threads that convert values in parallel, started on first use.
+     */
+    private static final class Parallel {
+        static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+
+    private Object convert(String value, Class<?> cls, String name, boolean option) {
+        try {
+            return c.convert(value, cls);
+        } catch (ConversionException e) {
+            throw wrongType(value, name, option);
+        }
+    }
+
+    private CliException wrongType(String value, String name, boolean option) {
+        final String typeName = key == null ? element.getName() : key.getName() + "="
+                + element.getName();
+        return option ? CliException.WRONG_OPT_TYPE(name, typeName, value) : CliException
+                .WRONG_ARG_TYPE(name, typeName, value);
+    }
+
+    /**
+     * @return initial capacity of a hash based collection that hold a number of
+     * elements without being resized.
+     */
+    private static int capacity(int size) {
+        return Math.max(16, (int) (size / 0.75f) + 1);
+    }
+
+    /**
+     * @return the class of an element type, strings for unbounded types.
+     */
+    private static Class<?> erasure(Type type) {
+        if (type instanceof Class) {
+            return type == Object.class ? String.class : (Class<?>) type;
+        } else if (type instanceof ParameterizedType) {
+            return erasure(((ParameterizedType) type).getRawType());
+        } else if (type instanceof WildcardType) {
+            return erasure(((WildcardType) type).getUpperBounds()[0]);
+        } else if (type instanceof TypeVariable) {
+            return erasure(((TypeVariable<?>) type).getBounds()[0]);
+        } else if (type instanceof GenericArrayType) {
+            final Class<?> component = erasure(((GenericArrayType) type)
+                    .getGenericComponentType());
+            return Array.newInstance(component, 0).getClass();
+        }
+        return String.class;
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * NativeImageConfig collect everything that commands access through reflection and
+ * write it as GraalVM native-image configuration. That is, command classes, their
+ * command methods and option fields, generated dispatchers and the types that
+ * options and arguments are converted to.
+ * <p>
+ * The configuration of tools4j-cli itself is packaged with the library.
+ */
+final class NativeImageConfig {
+    /** classpath location of configuration, a sub directory is added per project */
+    static final String DIR = "META-INF/native-image/tools4j-cli/";
+    static final String REFLECT_CONFIG = "reflect-config.json";
+    static final String RESOURCE_CONFIG = "resource-config.json";
+
+    private final ProcessingEnvironment env;
+    private final Types types;
+    /** reflection entries by class name */
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+    /** first package, in order, of the command classes. Name the config directory */
+    private String project;
+
+    NativeImageConfig(ProcessingEnvironment env) {
+        this.env = env;
+        this.types = env.getTypeUtils();
+    }
+
+    /**
+     * Register a class that declare commands.
+     *
+     * @param options option fields of the class and its superclasses.
+     * @param dispatcher true if a dispatcher was generated for the class.
+     */
+    void add(TypeElement type, List<VariableElement> options, boolean dispatcher) {
+        final String className = binaryName(type);
+        final Entry entry = entry(className);
+        entry.constructors = true;
+        final String pkg = env.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        if (project == null || (!pkg.isEmpty() && pkg.compareTo(project) < 0)) {
+            project = pkg;
+        }
+        for (ExecutableElement m : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (m.getAnnotation(CliCmd.class) == null) {
+                continue;
+            }
+            final List<? extends VariableElement> params = m.getParameters();
+            final List<String> names = new ArrayList<String>();
+            for (int i = 0; i < params.size(); i++) {
+                names.add(typeName(params.get(i).asType()));
+                addConvertible(params.get(i).asType());
+            }
+            entry.method(m.getSimpleName().toString(), join(names));
+        }
+        for (VariableElement f : options) {
+            final TypeElement owner = (TypeElement) f.getEnclosingElement();
+            entry(binaryName(owner)).fields.add(f.getSimpleName().toString());
+            addConvertible(f.asType());
+        }
+        if (dispatcher) {
+            entry(className + CliDispatcher.SUFFIX).method("<init>", "");
+        }
+    }
+
+    /**
+     * @return true for collections, maps and iterators, which are never converted
+     * using reflection themselves.
+     */
+    private boolean isContainer(TypeMirror type) {
+        final TypeMirror erasure = types.erasure(type);
+        for (Class<?> cls : new Class<?>[] { Collection.class, Map.class, Iterator.class }) {
+            final TypeElement element = env.getElementUtils().getTypeElement(cls.getName());
+            if (types.isAssignable(erasure, types.erasure(element.asType()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Register types that are converted using reflection.
+     */
+    private void addConvertible(TypeMirror type) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            addConvertible(((ArrayType) type).getComponentType());
+            return;
+        } else if (type.getKind() == TypeKind.WILDCARD) {
+            final TypeMirror bound = ((WildcardType) type).getExtendsBound();
+            if (bound != null) {
+                addConvertible(bound);
+            }
+            return;
+        } else if (type.getKind() != TypeKind.DECLARED) {
+            return;
+        }
+        // elements of collections, maps and iterators
+        for (TypeMirror arg : ((DeclaredType) type).getTypeArguments()) {
+            addConvertible(arg);
+        }
+        if (isContainer(type)) {
+            return;
+        }
+        final TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        final String name = binaryName(element);
+        if (name.startsWith("java.lang.")) {
+            // strings, numbers and booleans are converted without reflection
+            return;
+        }
+        if (name.equals(Path.class.getName())) {
+            // interface converted through the Paths factory
+            entry(Paths.class.getName()).method("get",
+                    String.class.getName() + "," + String[].class.getCanonicalName());
+            return;
+        }
+        final Entry entry = entry(name);
+        if (element.getKind() == ElementKind.ENUM) {
+            // possible values are listed from the enum constants
+            entry.fields.add("*");
+            entry.method("values", "");
+            entry.method("valueOf", String.class.getName());
+        } else {
+            // factories that StringToObjectConverter look for
+            for (String factory : new String[] { "valueOf", "of", "parse" }) {
+                entry.method(factory, String.class.getName());
+                entry.method(factory, CharSequence.class.getName());
+            }
+            entry.method("<init>", String.class.getName());
+        }
+    }
+
+    /**
+     * Write configuration, if any command classes was registered.
+     */
+    void write() throws IOException {
+        if (project == null) {
+            return;
+        }
+        final String dir = DIR + (project.isEmpty() ? "default" : project) + "/";
+        PrintWriter pw = writer(dir + REFLECT_CONFIG);
+        try {
+            pw.println("[");
+            int i = 0;
+            for (Entry entry : entries.values()) {
+                entry.write(pw);
+                pw.println(++i < entries.size() ? "," : "");
+            }
+            pw.println("]");
+        } finally {
+            pw.close();
+        }
+        pw = writer(dir + RESOURCE_CONFIG);
+        try {
+            pw.println("{");
+            pw.println("  \"resources\": {");
+            pw.println("    \"includes\": [");
+            pw.println("      { \"pattern\": \"\\\\Q" + CommandIndex.FILEPATH + "\\\\E\" },");
+            pw.println("      { \"pattern\": \"\\\\Q" + Command.XmlCommands.FILEPATH + "\\\\E\" }");
+            pw.println("    ]");
+            pw.println("  }");
+            pw.println("}");
+        } finally {
+            pw.close();
+        }
+    }
+
+    private PrintWriter writer(String path) throws IOException {
+        final FileObject file = env.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                path, (Element[]) null);
+        return new PrintWriter(file.openWriter());
+    }
+
+    private Entry entry(String className) {
+        Entry entry = entries.get(className);
+        if (entry == null) {
+            entry = new Entry(className);
+            entries.put(className, entry);
+        }
+        return entry;
+    }
+
+    private String binaryName(TypeElement type) {
+        return env.getElementUtils().getBinaryName(type).toString();
+    }
+
+    /**
+     * Name of the erasure of a type, as understood by native-image.
+     */
+    private String typeName(TypeMirror type) {
+        final TypeMirror erasure = types.erasure(type);
+        if (erasure.getKind() == TypeKind.ARRAY) {
+            return typeName(((ArrayType) erasure).getComponentType()) + "[]";
+        }
+        if (erasure.getKind() == TypeKind.DECLARED) {
+            return binaryName((TypeElement) ((DeclaredType) erasure).asElement());
+        }
+        return erasure.toString();
+    }
+
+    private static String join(List<String> values) {
+        final StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reflective access needed for a single class.
+     */
+    private static final class Entry {
+        private final String name;
+        private boolean constructors;
+        /** field names, "*" means all declared fields */
+        private final Set<String> fields = new LinkedHashSet<String>();
+        /** method name and comma separated parameter types */
+        private final Map<String, String[]> methods = new LinkedHashMap<String, String[]>();
+
+        private Entry(String name) {
+            this.name = name;
+        }
+
+        private void method(String name, String params) {
+            methods.put(name + "(" + params + ")", new String[] { name, params });
+        }
+
+        private void write(PrintWriter pw) {
+            pw.print("  {");
+            pw.print("\n    \"name\": \"" + name + "\"");
+            if (constructors) {
+                pw.print(",\n    \"allDeclaredConstructors\": true");
+            }
+            if (fields.contains("*")) {
+                pw.print(",\n    \"allDeclaredFields\": true");
+            } else if (!fields.isEmpty()) {
+                pw.print(",\n    \"fields\": [");
+                int i = 0;
+                for (String field : fields) {
+                    pw.print((i++ == 0 ? "" : ",") + "\n      { \"name\": \"" + field
+                            + "\", \"allowWrite\": true }");
+                }
+                pw.print("\n    ]");
+            }
+            if (!methods.isEmpty()) {
+                pw.print(",\n    \"methods\": [");
+                int i = 0;
+                for (String[] m : methods.values()) {
+                    pw.print((i++ == 0 ? "" : ",") + "\n      { \"name\": \"" + m[0]
+                            + "\", \"parameterTypes\": [" + quote(m[1]) + "] }");
+                }
+                pw.print("\n    ]");
+            }
+            pw.print("\n  }");
+        }
+
+        private static String quote(String commaSeparated) {
+            if (commaSeparated.isEmpty()) {
+                return "";
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (String value : commaSeparated.split(",")) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append('"').append(value).append('"');
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.deephacks.tools4j.cli.Conversion.ConversionException;
+
+/**
+ * Primitives is responsible for parsing strings straight into primitive values,
+ * without going through their wrapper classes.
+ * <p>
+ * Values are trimmed and parsed the same way as their wrappers are converted, so
+ * that an int option accept the same input as an Integer option.
+ */
+final class Primitives {
+    private static final Set<String> TRUE_VALUES = new HashSet<String>(Arrays.asList("true",
+            "on", "yes", "y", "1"));
+    private static final Set<String> FALSE_VALUES = new HashSet<String>(Arrays.asList("false",
+            "off", "no", "n", "0"));
+
+    private Primitives() {
+    }
+
+    static boolean parseBoolean(String source) {
+        final String value = source.trim();
+        if (TRUE_VALUES.contains(value)) {
+            return true;
+        } else if (FALSE_VALUES.contains(value)) {
+            return false;
+        }
+        throw new ConversionException("Invalid boolean value '" + source + "'");
+    }
+
+    static byte parseByte(String source) {
+        return (byte) parseInteger(source, Byte.MIN_VALUE, Byte.MAX_VALUE, byte.class);
+    }
+
+    static short parseShort(String source) {
+        return (short) parseInteger(source, Short.MIN_VALUE, Short.MAX_VALUE, short.class);
+    }
+
+    static int parseInt(String source) {
+        return (int) parseInteger(source, Integer.MIN_VALUE, Integer.MAX_VALUE, int.class);
+    }
+
+    static long parseLong(String source) {
+        return parseInteger(source, Long.MIN_VALUE, Long.MAX_VALUE, long.class);
+    }
+
+    static float parseFloat(String source) {
+        try {
+            return Float.parseFloat(source.trim());
+        } catch (NumberFormatException e) {
+            throw invalid(source, float.class, e);
+        }
+    }
+
+    static double parseDouble(String source) {
+        try {
+            return Double.parseDouble(source.trim());
+        } catch (NumberFormatException e) {
+            throw invalid(source, double.class, e);
+        }
+    }
+
+    static char parseChar(String source) {
+        if (source.length() != 1) {
+            throw new ConversionException("Cannot convert [" + source + "] to [char]");
+        }
+        return source.charAt(0);
+    }
+
+    /**
+     * Parse a value into the wrapper of a primitive type.
+     */
+    static Object parse(String source, Class<?> type) {
+        if (type == int.class) {
+            return parseInt(source);
+        } else if (type == long.class) {
+            return parseLong(source);
+        } else if (type == boolean.class) {
+            return parseBoolean(source);
+        } else if (type == double.class) {
+            return parseDouble(source);
+        } else if (type == float.class) {
+            return parseFloat(source);
+        } else if (type == short.class) {
+            return parseShort(source);
+        } else if (type == byte.class) {
+            return parseByte(source);
+        } else if (type == char.class) {
+            return parseChar(source);
+        }
+        throw new ConversionException("Cannot convert [" + source + "] to [" + type + "]");
+    }
+
+    /**
+     * @return a (String)type method handle that parse values of a primitive type.
+     */
+    static MethodHandle parser(Class<?> type) {
+        final String name = "parse" + Character.toUpperCase(type.getName().charAt(0))
+                + type.getName().substring(1);
+        try {
+            return MethodHandles.lookup().findStatic(Primitives.class, name,
+                    MethodType.methodType(type, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Not a primitive type " + type, e);
+        }
+    }
+
+    /**
+     * Parse a decimal integer by reading its digits straight from the value, without
+     * trimming or copying it. Whitespace around the digits is ignored, as is done by
+     * {@link String#trim()}.
+     *
+     * @param min smallest value of the type.
+     * @param max largest value of the type.
+     * @throws ConversionException if the value is not a number within min and max.
+     */
+    static long parseInteger(String source, long min, long max, Class<?> type) {
+        int i = 0;
+        int end = source.length();
+        while (i < end && source.charAt(i) <= ' ') {
+            i++;
+        }
+        while (end > i && source.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        boolean negative = false;
+        // accumulate negatively, since the negative range is larger than the positive
+        long limit = -max;
+        if (i < end && (source.charAt(i) == '-' || source.charAt(i) == '+')) {
+            negative = source.charAt(i) == '-';
+            limit = negative ? min : limit;
+            i++;
+        }
+        if (i == end) {
+            throw invalid(source, type, null);
+        }
+        final long multiplyLimit = limit / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            final int digit = source.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < multiplyLimit) {
+                throw invalid(source, type, null);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw invalid(source, type, null);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static ConversionException invalid(String source, Class<?> type,
+            NumberFormatException e) {
+        return new ConversionException("Cannot convert [" + source + "] to [" + type + "]", e);
+    }
+}
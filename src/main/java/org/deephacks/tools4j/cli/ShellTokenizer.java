@@ -0,0 +1,161 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ShellTokenizer is responsible for splitting a command line into words, using
+ * the quoting rules of a POSIX shell.
+ * <ul>
+ * <li>Words are separated by whitespace.</li>
+ * <li>Characters within single quotes are taken literally.</li>
+ * <li>Within double quotes a backslash escapes ", \, $ and `.</li>
+ * <li>Outside quotes a backslash escapes any character, a backslash followed by a
+ * newline continues the line.</li>
+ * <li># at the start of a word starts a comment that ends at the end of the line.</li>
+ * </ul>
+ * Variables, globs and other expansions are not performed.
+ * <p>
+ * Input can be given in chunks, which allow large input such as argument files to be
+ * split without holding all of it in memory.
+ */
+final class ShellTokenizer {
+    private static final int PLAIN = 0;
+    private static final int SINGLE_QUOTED = 1;
+    private static final int DOUBLE_QUOTED = 2;
+    private static final int COMMENT = 3;
+    /** characters that a backslash escape within double quotes */
+    private static final String DOUBLE_QUOTED_ESCAPES = "\"\\$`";
+
+    /** receive words as they are completed */
+    private final List<String> words;
+    private final StringBuilder word = new StringBuilder();
+    private int state = PLAIN;
+    /** true if the previous character was a backslash */
+    private boolean escaped;
+    /** true if the current word exist, even if empty, such as '' */
+    private boolean inWord;
+
+    /**
+     * @param words list that words are added to.
+     */
+    ShellTokenizer(List<String> words) {
+        this.words = words;
+    }
+
+    /**
+     * @param line command line to split.
+     * @return words of the line, empty if the line is blank or a comment.
+     * @throws CliException if a quote is not terminated.
+     */
+    static List<String> tokenize(CharSequence line) {
+        final List<String> words = new ArrayList<String>();
+        final ShellTokenizer tokenizer = new ShellTokenizer(words);
+        tokenizer.accept(line);
+        tokenizer.end(line);
+        return words;
+    }
+
+    /**
+     * Split the next chunk of input, a word may continue into the next chunk.
+     */
+    void accept(CharSequence chars) {
+        final int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            accept(chars.charAt(i));
+        }
+    }
+
+    private void accept(char c) {
+        switch (state) {
+        case COMMENT:
+            if (c == '\n') {
+                state = PLAIN;
+            }
+            return;
+        case SINGLE_QUOTED:
+            if (c == '\'') {
+                state = PLAIN;
+            } else {
+                word.append(c);
+            }
+            return;
+        case DOUBLE_QUOTED:
+            if (escaped) {
+                escaped = false;
+                if (DOUBLE_QUOTED_ESCAPES.indexOf(c) < 0) {
+                    word.append('\\');
+                }
+                word.append(c);
+            } else if (c == '"') {
+                state = PLAIN;
+            } else if (c == '\\') {
+                escaped = true;
+            } else {
+                word.append(c);
+            }
+            return;
+        default:
+            if (escaped) {
+                escaped = false;
+                if (c != '\n') {
+                    word.append(c);
+                    inWord = true;
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else if (c == '#' && !inWord) {
+                state = COMMENT;
+            } else if (c == '\'') {
+                state = SINGLE_QUOTED;
+                inWord = true;
+            } else if (c == '"') {
+                state = DOUBLE_QUOTED;
+                inWord = true;
+            } else if (c == '\\') {
+                escaped = true;
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+    }
+
+    /**
+     * Complete the last word when all input have been given.
+     *
+     * @param source input or name of the input, used in error messages.
+     * @throws CliException if a quote is not terminated.
+     */
+    void end(Object source) {
+        if (state == SINGLE_QUOTED) {
+            throw new CliException("Unterminated ' in " + source);
+        } else if (state == DOUBLE_QUOTED) {
+            throw new CliException("Unterminated \" in " + source);
+        }
+        if (inWord || escaped) {
+            words.add(word.toString());
+        }
+        word.setLength(0);
+        inWord = false;
+        escaped = false;
+        state = PLAIN;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * StartupProfile is responsible for measuring where time is spent when a command
+ * is executed with the --profile-startup option.
+ * <p>
+ * Phases may be nested, the time of a phase does not include the time of the
+ * phases that are measured within it. When no command is profiled a measurement
+ * cost a single static field read.
+ * <p>
+ * A profile belong to the thread that execute the command, so commands executed
+ * by other threads at the same time are neither measured nor disturbed.
+ */
+final class StartupProfile {
+    enum Phase {
+        JVM("jvm start to main"),
+        MAIN("select mode in main"),
+        PARSE("parse arguments"),
+        READ_COMMANDS("read commands"),
+        NEW_INSTANCE("create command instance"),
+        CONVERSION("convert options and arguments"),
+        VALIDATOR_BOOTSTRAP("validator bootstrap"),
+        VALIDATION("validate options and arguments"),
+        INVOKE("invoke command");
+
+        private final String description;
+
+        private Phase(String description) {
+            this.description = description;
+        }
+    }
+
+    /** profile of the command executed by each thread, if it is profiled */
+    private static final ThreadLocal<StartupProfile> PROFILES = new ThreadLocal<StartupProfile>();
+    /** number of threads with a profile, measurements are skipped while none */
+    private static volatile int profiled;
+
+    /** exclusive time of each phase */
+    private final long[] nanos = new long[Phase.values().length];
+    /** total time recorded when each unfinished phase started */
+    private long[] started = new long[8];
+    private int depth;
+    /** total time recorded by all phases */
+    private long recorded;
+
+    private StartupProfile() {
+    }
+
+    /**
+     * Start profiling the command executed by the current thread, which entered
+     * main at the time given.
+     *
+     * @param mainMillis wall clock time when main was entered, 0 if the JVM was
+     * not started for this run.
+     */
+    static void enable(long mainMillis) {
+        final StartupProfile profile = new StartupProfile();
+        if (mainMillis > 0) {
+            final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+            profile.nanos[Phase.JVM.ordinal()] = Math.max(0, mainMillis - jvmStart) * 1000000L;
+        }
+        if (PROFILES.get() == null) {
+            synchronized (PROFILES) {
+                profiled++;
+            }
+        }
+        PROFILES.set(profile);
+    }
+
+    static boolean enabled() {
+        return current() != null;
+    }
+
+    /**
+     * @return profile of the current thread or null if it is not profiled.
+     */
+    private static StartupProfile current() {
+        return profiled == 0 ? null : PROFILES.get();
+    }
+
+    /**
+     * @return a token that is given to {@link #stop(Phase, long)}.
+     */
+    static long start() {
+        final StartupProfile profile = current();
+        if (profile == null) {
+            return 0;
+        }
+        if (profile.depth == profile.started.length) {
+            profile.started = Arrays.copyOf(profile.started, profile.depth * 2);
+        }
+        profile.started[profile.depth++] = profile.recorded;
+        return System.nanoTime();
+    }
+
+    static void stop(Phase phase, long start) {
+        final StartupProfile profile = current();
+        if (profile == null) {
+            return;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long exclusive = elapsed - (profile.recorded - profile.started[--profile.depth]);
+        profile.nanos[phase.ordinal()] += exclusive;
+        profile.recorded += exclusive;
+    }
+
+    /**
+     * Record a phase that was measured before the profile was enabled.
+     */
+    static void record(Phase phase, long elapsed) {
+        final StartupProfile profile = current();
+        if (profile == null) {
+            return;
+        }
+        profile.nanos[phase.ordinal()] += elapsed;
+        profile.recorded += elapsed;
+    }
+
+    /**
+     * Print the time of each phase and disable the profile of the current thread.
+     */
+    static void print(PrintStream out) {
+        final StartupProfile profile = current();
+        if (profile == null) {
+            return;
+        }
+        PROFILES.remove();
+        synchronized (PROFILES) {
+            profiled--;
+        }
+        final long[] nanos = profile.nanos;
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Startup profile (ms):").append(Utils.NEWLINE);
+        long total = 0;
+        for (Phase phase : Phase.values()) {
+            total += nanos[phase.ordinal()];
+            sb.append(format(phase.description, nanos[phase.ordinal()]));
+        }
+        sb.append(format("total", total));
+        out.print(sb.toString());
+        out.flush();
+    }
+
+    private static String format(String description, long nanos) {
+        return String.format("  %-32s%10.3f%n", description, nanos / 1000000d);
+    }
+}
@@ -15,10 +15,14 @@ package org.deephacks.tools4j.cli;
 
 import org.deephacks.tools4j.cli.Command.Argument;
 import org.deephacks.tools4j.cli.Command.Option;
+import org.deephacks.tools4j.cli.StartupProfile.Phase;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -36,17 +40,26 @@ final class Utils {
     /** API class for JSR 303 1.1 bean validation, class only exist in 1.1 */
     public static final String JSR303_1_1_CLASSNAME = "javax.validation.metadata.MethodDescriptor";
 
-    /** the instance of the Validator object */
-    private static Object validator;
     /** new line character */
     public static final String NEWLINE = System.getProperty("line.separator");
     static final String AVAILABLE_CMDS_MSG = "Available commands are:";
 
     static Object newInstance(String className) {
+        return newInstance(loadClass(className));
+    }
+
+    static Class<?> loadClass(String className) {
+        try {
+            return Thread.currentThread().getContextClassLoader().loadClass(className);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static Object newInstance(Class<?> type) {
         try {
-            Class<?> type = Thread.currentThread().getContextClassLoader().loadClass(className);
             Class<?> enclosing = type.getEnclosingClass();
-            if (enclosing == null) {
+            if (enclosing == null || Modifier.isStatic(type.getModifiers())) {
                 Constructor<?> c = type.getDeclaredConstructor();
                 c.setAccessible(true);
                 return type.cast(c.newInstance());
@@ -77,26 +90,39 @@ final class Utils {
         return sb.toString();
     }
 
+    /**
+     * @return true if options are validated, which is when Bean Validation is
+     * available on classpath.
+     */
+    static boolean validatesOpts() {
+        return ValidationPlan.OPTS;
+    }
+
+    /**
+     * @return true if arguments are validated, which is when Bean Validation 1.1 is
+     * available on classpath.
+     */
+    static boolean validatesArgs() {
+        return ValidationPlan.ARGS;
+    }
+
     /**
      * Validate that the method parameters if Bean Validation 1.1 is available
      * on classpath.
      */
     static void validateArgs(List<Object> args, Object instance, Method m, Command cmd) {
-        if (!onClasspath(JSR303_1_1_CLASSNAME)) {
+        if (!ValidationPlan.ARGS) {
             return;
         }
+        final long start = StartupProfile.start();
         try {
-            Object validator = getValidator();
-            Method validate = validator.getClass().getMethod("validateArgs", List.class,
-                    Object.class, Method.class, Command.class);
-            validate.invoke(validator, args, instance, m, cmd);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getCause();
-            }
-            throw new RuntimeException(e.getCause());
-        } catch (Exception e) {
+            BoundValidator.get().args.invokeExact(args, instance, m, cmd);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
             throw new RuntimeException(e);
+        } finally {
+            StartupProfile.stop(Phase.VALIDATION, start);
         }
     }
 
@@ -104,33 +130,79 @@ final class Utils {
      * Validate that the options if Bean Validation is available on classpath.
      */
     static void validateOpts(Object instance) {
-        if (!onClasspath(JSR303_1_0_CLASSNAME)) {
+        if (!ValidationPlan.OPTS) {
             return;
         }
+        final long start = StartupProfile.start();
         try {
-            Object validator = getValidator();
-            Method validate = validator.getClass().getMethod("validateOpts", Object.class);
-            validate.invoke(validator, instance);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
-            }
-            throw new RuntimeException(e.getTargetException());
+            BoundValidator.get().opts.invokeExact(instance);
         } catch (RuntimeException e) {
             throw e;
         } catch (Throwable e) {
             throw new RuntimeException(e);
+        } finally {
+            StartupProfile.stop(Phase.VALIDATION, start);
         }
     }
 
-    private static Object getValidator() throws InstantiationException, IllegalAccessException,
-            ClassNotFoundException {
-        if (validator == null) {
-            ClassLoader cl = Thread.currentThread().getContextClassLoader();
-            validator = cl.loadClass(VALIDATOR_CLASSNAME).newInstance();
+    /**
+     * Bean Validation versions available on classpath, probed once when first
+     * asked for.
+     */
+    private static final class ValidationPlan {
+        static final boolean OPTS = onClasspath(JSR303_1_0_CLASSNAME);
+        static final boolean ARGS = OPTS && onClasspath(JSR303_1_1_CLASSNAME);
+    }
+
+    /**
+     * Validator methods bound to a validator instance, created on the first
+     * validation since creating the validator factory is costly. A validator that
+     * fail to bootstrap is not kept, and is created again on the next validation.
+     */
+    private static final class BoundValidator {
+        /** validator of the JVM, null until it is created */
+        private static volatile BoundValidator instance;
+        /** (Object)void */
+        final MethodHandle opts;
+        /** (List, Object, Method, Command)void */
+        final MethodHandle args;
 
+        private BoundValidator(MethodHandle opts, MethodHandle args) {
+            this.opts = opts;
+            this.args = args;
+        }
+
+        static BoundValidator get() {
+            BoundValidator validator = instance;
+            if (validator == null) {
+                synchronized (BoundValidator.class) {
+                    validator = instance;
+                    if (validator == null) {
+                        validator = create();
+                        instance = validator;
+                    }
+                }
+            }
+            return validator;
+        }
+
+        private static BoundValidator create() {
+            final long start = StartupProfile.start();
+            try {
+                final Class<?> type = loadClass(VALIDATOR_CLASSNAME);
+                final Object validator = newInstance(type);
+                final MethodHandles.Lookup lookup = MethodHandles.lookup();
+                return new BoundValidator(lookup.findVirtual(type, "validateOpts",
+                        MethodType.methodType(void.class, Object.class)).bindTo(validator),
+                        lookup.findVirtual(type, "validateArgs",
+                                MethodType.methodType(void.class, List.class, Object.class,
+                                        Method.class, Command.class)).bindTo(validator));
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            } finally {
+                StartupProfile.stop(Phase.VALIDATOR_BOOTSTRAP, start);
+            }
         }
-        return validator;
     }
 
     /**
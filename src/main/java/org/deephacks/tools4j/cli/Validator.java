@@ -30,7 +30,8 @@ import org.deephacks.tools4j.cli.Command.Argument;
 final class Validator {
     static final String ARG_VIOLATION_MSG = "Argument violation";
     static final String OPT_VIOLATION_MSG = "Option violation";
-    private static final javax.validation.Validator validator = Validation
+    /** created per instance, a failed bootstrap must not break the class */
+    private final javax.validation.Validator validator = Validation
             .buildDefaultValidatorFactory().getValidator();
 
     /**
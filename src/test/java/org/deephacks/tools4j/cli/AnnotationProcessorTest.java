@@ -0,0 +1,500 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import javax.tools.JavaCompiler;
+import javax.validation.ValidationException;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+/**
+ * Compiles a command with the AnnotationProcessor and execute it from the
+ * generated files.
+ */
+public class AnnotationProcessorTest {
+
+    static final String GREET_SOURCE = "package test;\n"
+            + "import org.deephacks.tools4j.cli.*;\n"
+            + "public class Greet {\n"
+            + "    /** name to greet */\n"
+            + "    @CliOption(shortName = \"n\")\n"
+            + "    String name = \"world\";\n"
+            + "    /**\n"
+            + "     * Say hello.\n"
+            + "     * @param times number of greetings\n"
+            + "     */\n"
+            + "    @CliCmd\n"
+            + "    public void greet(Integer times) {\n"
+            + "        StringBuilder sb = new StringBuilder();\n"
+            + "        for (int i = 0; i < times; i++) sb.append(\"hello \" + name + \" \");\n"
+            + "        System.setProperty(\"test.greet\", sb.toString().trim());\n"
+            + "    }\n"
+            + "}\n";
+
+    @Test
+    public void test_binary_index() throws Exception {
+        File classes = compile("test/Greet.java", GREET_SOURCE);
+        File index = new File(classes, CommandIndex.FILEPATH);
+        assertTrue(index.exists());
+        assertTrue(new File(classes, Command.XmlCommands.FILEPATH).exists());
+
+        List<Command> cmds = CommandIndex.read(index.toURI().toURL());
+        assertThat(cmds.size(), is(1));
+        Command cmd = cmds.get(0);
+        assertThat(cmd.getCommand(), is("greet"));
+        assertThat(cmd.getClassName(), is("test.Greet"));
+        assertThat(cmd.getDoc(), is("Say hello."));
+        assertThat(cmd.getOptions().get(0).getShortName(), is("n"));
+        assertThat(cmd.getOptions().get(0).getDoc(), is("name to greet"));
+        assertThat(cmd.getArguments().get(0).getTypeName(), is("java.lang.Integer"));
+        assertThat(cmd.getArguments().get(0).getDoc(), is("number of greetings"));
+
+        run(classes, "greet", "-n", "index", "2");
+        assertThat(System.getProperty("test.greet"), is("hello index hello index"));
+    }
+
+    @Test
+    public void test_generated_dispatcher() throws Exception {
+        File classes = compile("test/Greet.java", GREET_SOURCE, "test/Hidden.java",
+                "package test;\n"
+                + "import org.deephacks.tools4j.cli.*;\n"
+                + "public class Hidden {\n"
+                + "    @CliOption(shortName = \"v\")\n"
+                + "    private String value;\n"
+                + "    @CliCmd\n"
+                + "    void hidden(String... args) {\n"
+                + "        System.setProperty(\"test.hidden\", value + args.length);\n"
+                + "    }\n"
+                + "}\n");
+        assertTrue(new File(classes, "test/Greet" + CliDispatcher.SUFFIX + ".class").exists());
+        // private option fields can only be injected through reflection
+        assertFalse(new File(classes, "test/Hidden" + CliDispatcher.SUFFIX + ".class").exists());
+
+        run(classes, "greet", "--name", "dispatcher", "1");
+        assertThat(System.getProperty("test.greet"), is("hello dispatcher"));
+        run(classes, "hidden", "-v", "reflection", "a", "b");
+        assertThat(System.getProperty("test.hidden"), is("reflection2"));
+        try {
+            run(classes, "greet", "one");
+            fail("exception expected");
+        } catch (CliException e) {
+            assertTrue(e.getMessage().contains(CliException.WRONG_ARG_TYPE_MSG));
+        }
+        try {
+            run(classes, "greet");
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("wrong number of arguments"));
+        }
+    }
+
+    @Test
+    public void test_command_groups() throws Exception {
+        File classes = compile("test/Greet.java", GREET_SOURCE, "test/Db.java",
+                "package test;\n"
+                + "import org.deephacks.tools4j.cli.*;\n"
+                + "@CliGroup(\"db\")\n"
+                + "public class Db {\n"
+                + "    @CliCmd\n"
+                + "    public void greet(String name) {\n"
+                + "        System.setProperty(\"test.group\", \"db \" + name);\n"
+                + "    }\n"
+                + "    @CliGroup(\"schema\")\n"
+                + "    public static class Schema {\n"
+                + "        @CliOption(shortName = \"f\")\n"
+                + "        Boolean force;\n"
+                + "        @CliCmd\n"
+                + "        public void greet(String name) {\n"
+                + "            System.setProperty(\"test.group\", \"schema \" + name + force);\n"
+                + "        }\n"
+                + "    }\n"
+                + "}\n");
+        CommandIndex index = CommandIndex.open(new File(classes, CommandIndex.FILEPATH).toURI()
+                .toURL());
+        assertThat(index.get("db schema greet").getClassName(), is("test.Db$Schema"));
+        assertTrue(index.isGroup("db"));
+        assertTrue(index.isGroup("db schema"));
+        assertFalse(index.isGroup("d"));
+        assertFalse(index.isGroup("db greet"));
+
+        run(classes, "greet", "--name", "flat", "1");
+        assertThat(System.getProperty("test.greet"), is("hello flat"));
+        run(classes, "db", "greet", "x");
+        assertThat(System.getProperty("test.group"), is("db x"));
+        run(classes, "db", "schema", "greet", "-f", "y");
+        assertThat(System.getProperty("test.group"), is("schema ytrue"));
+        try {
+            run(classes, "db", "migrate");
+            fail("exception expected");
+        } catch (CliException e) {
+            assertTrue(e.getMessage().contains("db migrate"));
+        }
+    }
+
+    @Test
+    public void test_primitive_dispatcher() throws Exception {
+        File classes = compile("test/Sum.java", "package test;\n"
+                + "import org.deephacks.tools4j.cli.*;\n"
+                + "public class Sum {\n"
+                + "    @CliOption(shortName = \"s\")\n"
+                + "    long scale = 1;\n"
+                + "    @CliOption(shortName = \"n\")\n"
+                + "    boolean negate;\n"
+                + "    @CliCmd\n"
+                + "    public void sum(int a, double b) {\n"
+                + "        double sum = (a + b) * scale;\n"
+                + "        System.setProperty(\"test.sum\", String.valueOf(negate ? -sum : sum));\n"
+                + "    }\n"
+                + "}\n");
+        assertTrue(new File(classes, "test/Sum" + CliDispatcher.SUFFIX + ".class").exists());
+        run(classes, "sum", "1", "0.5");
+        assertThat(System.getProperty("test.sum"), is("1.5"));
+        run(classes, "sum", "--negate", "-s", "10", "1", "0.5");
+        assertThat(System.getProperty("test.sum"), is("-15.0"));
+        try {
+            run(classes, "sum", "-s", "x", "1", "2");
+            fail("exception expected");
+        } catch (CliException e) {
+            assertTrue(e.getMessage().contains(CliException.WRONG_OPT_TYPE_MSG));
+        }
+        try {
+            run(classes, "sum", "1");
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("wrong number of arguments"));
+        }
+    }
+
+    @Test
+    public void test_multi_value_dispatcher() throws Exception {
+        File classes = compile("test/Multi.java", "package test;\n"
+                + "import org.deephacks.tools4j.cli.*;\n"
+                + "import java.util.*;\n"
+                + "public class Multi {\n"
+                + "    @CliOption(shortName = \"t\")\n"
+                + "    List<? extends Number> tags = new ArrayList<Integer>();\n"
+                + "    @CliCmd\n"
+                + "    public void multi(String first, Map<String, Long> values) {\n"
+                + "        System.setProperty(\"test.multi\", first + tags + values);\n"
+                + "    }\n"
+                + "    @CliCmd\n"
+                + "    public void sum(Integer... values) {\n"
+                + "        int sum = 0;\n"
+                + "        for (int v : values) sum += v;\n"
+                + "        System.setProperty(\"test.multi\", String.valueOf(sum));\n"
+                + "    }\n"
+                + "    @CliCmd\n"
+                + "    public void count(Iterator<? extends Number> lines) {\n"
+                + "        int count = 0;\n"
+                + "        for (; lines.hasNext(); lines.next()) count++;\n"
+                + "        System.setProperty(\"test.multi\", String.valueOf(count));\n"
+                + "    }\n"
+                + "}\n");
+        assertTrue(new File(classes, "test/Multi" + CliDispatcher.SUFFIX + ".class").exists());
+        run(classes, "multi", "-t", "1", "-t", "2.5", "x", "a=1", "b=2");
+        assertThat(System.getProperty("test.multi"), is("x[1, 2.5]{a=1, b=2}"));
+        run(classes, "sum", "1", "2", "3");
+        assertThat(System.getProperty("test.multi"), is("6"));
+        File lines = new File(classes, "lines.txt");
+        Files.write(lines.toPath(), "1\n2.5\n".getBytes("UTF-8"));
+        run(classes, "count", lines.getAbsolutePath());
+        assertThat(System.getProperty("test.multi"), is("2"));
+        try {
+            run(classes, "multi");
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("wrong number of arguments"));
+        }
+    }
+
+    @Test
+    public void test_constraints() throws Exception {
+        File classes = compile("test/Greet.java", GREET_SOURCE, "test/Checked.java",
+                "package test;\n"
+                + "import org.deephacks.tools4j.cli.*;\n"
+                + "import javax.validation.constraints.*;\n"
+                + "public class Checked {\n"
+                + "    @CliOption(shortName = \"l\")\n"
+                + "    @Max(10)\n"
+                + "    Integer limit = 1;\n"
+                + "    @CliCmd\n"
+                + "    public void checked(@Min(1) Integer value) {\n"
+                + "        System.setProperty(\"test.checked\", limit + \" \" + value);\n"
+                + "    }\n"
+                + "    @CliCmd\n"
+                + "    public void unchecked(Integer value) {\n"
+                + "        System.setProperty(\"test.checked\", String.valueOf(value));\n"
+                + "    }\n"
+                + "}\n");
+        CommandIndex index = CommandIndex.open(new File(classes, CommandIndex.FILEPATH).toURI()
+                .toURL());
+        assertFalse(index.get("greet").validatesOpts());
+        assertFalse(index.get("greet").validatesArgs());
+        assertTrue(index.get("checked").validatesOpts());
+        assertTrue(index.get("checked").validatesArgs());
+        assertTrue(index.get("unchecked").validatesOpts());
+        assertFalse(index.get("unchecked").validatesArgs());
+        String greet = new String(Files.readAllBytes(new File(classes, "test/Greet"
+                + CliDispatcher.SUFFIX + ".java").toPath()), "UTF-8");
+        assertFalse(greet.contains("validate"));
+        String checked = new String(Files.readAllBytes(new File(classes, "test/Checked"
+                + CliDispatcher.SUFFIX + ".java").toPath()), "UTF-8");
+        assertTrue(checked.contains("method(Checked.class, \"checked\", java.lang.Integer.class)"));
+        assertFalse(checked.contains("\"unchecked\", java.lang.Integer.class"));
+
+        run(classes, "checked", "-l", "5", "1");
+        assertThat(System.getProperty("test.checked"), is("5 1"));
+        run(classes, "unchecked", "0");
+        assertThat(System.getProperty("test.checked"), is("0"));
+        for (String[] args : new String[][] { { "checked", "0" },
+                { "unchecked", "-l", "11", "1" } }) {
+            try {
+                run(classes, args);
+                fail("exception expected");
+            } catch (ValidationException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void test_native_image_config() throws Exception {
+        File classes = compile("test/Greet.java", GREET_SOURCE.replace("Integer times",
+                "Integer times, java.util.concurrent.TimeUnit unit, java.io.File file, "
+                + "java.nio.file.Path path"));
+        File dir = new File(classes, NativeImageConfig.DIR + "test");
+        String reflect = new String(Files.readAllBytes(new File(dir,
+                NativeImageConfig.REFLECT_CONFIG).toPath()), "UTF-8");
+        assertTrue(reflect.contains("\"name\": \"test.Greet\""));
+        assertTrue(reflect.contains("\"name\": \"test.Greet" + CliDispatcher.SUFFIX + "\""));
+        assertTrue(reflect.contains("\"name\": \"greet\", \"parameterTypes\": "
+                + "[\"java.lang.Integer\", \"java.util.concurrent.TimeUnit\", \"java.io.File\", "
+                + "\"java.nio.file.Path\"]"));
+        assertTrue(reflect.contains("{ \"name\": \"name\", \"allowWrite\": true }"));
+        assertTrue(reflect.contains("\"name\": \"java.util.concurrent.TimeUnit\""));
+        assertTrue(reflect.contains("\"name\": \"java.io.File\""));
+        assertFalse(reflect.contains("\"name\": \"java.lang.Integer\""));
+        assertTrue(reflect.contains("\"name\": \"java.nio.file.Paths\""));
+        assertTrue(reflect.contains("\"name\": \"get\", \"parameterTypes\": "
+                + "[\"java.lang.String\", \"java.lang.String[]\"]"));
+        assertFalse(reflect.contains("\"name\": \"java.nio.file.Path\""));
+        assertTrue(new File(dir, NativeImageConfig.RESOURCE_CONFIG).exists());
+    }
+
+    @Test
+    public void test_completion_scripts() throws Exception {
+        File classes = compile("test/Greet.java", GREET_SOURCE, "test/Db.java",
+                "package test;\n"
+                + "import java.util.concurrent.TimeUnit;\n"
+                + "import org.deephacks.tools4j.cli.*;\n"
+                + "@CliGroup(\"db\")\n"
+                + "public class Db {\n"
+                + "    @CliOption(shortName = \"u\")\n"
+                + "    TimeUnit unit;\n"
+                + "    @CliOption(shortName = \"f\")\n"
+                + "    Boolean force;\n"
+                + "    @CliCmd\n"
+                + "    public void expire(String table, TimeUnit... units) {}\n"
+                + "}\n");
+        String zsh = new String(Files.readAllBytes(new File(classes, CompletionScripts.ZSH)
+                .toPath()), "UTF-8");
+        assertTrue(zsh.startsWith("#compdef cli"));
+        assertTrue(zsh.contains("'db expire/--unit') _cli_words"));
+        File bash = new File(classes, CompletionScripts.BASH);
+        assertTrue(new String(Files.readAllBytes(bash.toPath()), "UTF-8").contains(
+                "complete -F _cli cli"));
+        if (!new File("/bin/bash").canExecute()) {
+            return;
+        }
+        assertThat(complete(bash, ""), is("db greet"));
+        assertThat(complete(bash, "db", ""), is("expire"));
+        assertThat(complete(bash, "db", "expire", "-u", "MI"),
+                is("MICROSECONDS MILLISECONDS MINUTES"));
+        assertThat(complete(bash, "db", "expire", "--f"), is("--force"));
+        assertThat(complete(bash, "db", "expire", "-f", "t", "D"), is("DAYS"));
+        assertThat(complete(bash, "db", "expire", "t", "DAYS", "H"), is("HOURS"));
+        assertThat(complete(bash, "greet", "--"), is("--name --verbose --debug --help "
+                + "--profile-startup"));
+    }
+
+    /**
+     * Complete the last word of a command line with a bash completion script.
+     *
+     * @return completions separated by space.
+     */
+    static String complete(File script, String... words) throws Exception {
+        final StringBuilder line = new StringBuilder("cli");
+        for (String word : words) {
+            line.append(" '").append(word).append("'");
+        }
+        final Process process = new ProcessBuilder("/bin/bash", "-c", "source '" + script
+                + "'; COMP_WORDS=(" + line + "); COMP_CWORD=" + words.length
+                + "; _cli; echo -n \"${COMPREPLY[*]}\"").redirectErrorStream(true).start();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final InputStream in = process.getInputStream();
+        final byte[] buf = new byte[1024];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            output.write(buf, 0, n);
+        }
+        assertThat(process.waitFor(), is(0));
+        return output.toString("UTF-8");
+    }
+
+    @Test
+    public void test_command_cache() throws Exception {
+        File classes = compile("test/Greet.java", GREET_SOURCE);
+        File cacheDir = Files.createTempDirectory("tools4j-cli-cache").toFile();
+        System.setProperty(CommandCache.CACHE_PROPERTY, cacheDir.getAbsolutePath());
+        try {
+            run(classes, "greet", "-n", "cold", "1");
+            assertThat(System.getProperty("test.greet"), is("hello cold"));
+            assertThat(cacheDir.list().length, is(1));
+
+            URLClassLoader cl = new URLClassLoader(new URL[] { classes.toURI().toURL() });
+            CommandIndex cached = CommandCache.get().read(cl);
+            assertThat(cached.get("greet").getClassName(), is("test.Greet"));
+            run(classes, "greet", "-n", "warm", "1");
+            assertThat(System.getProperty("test.greet"), is("hello warm"));
+
+            // a modified index invalidates the cache
+            File index = new File(classes, CommandIndex.FILEPATH);
+            index.setLastModified(index.lastModified() + 10000);
+            assertNull(CommandCache.get().read(cl));
+            run(classes, "greet", "-n", "rebuilt", "1");
+            assertThat(cacheDir.list().length, is(1));
+            assertNotNull(CommandCache.get().read(cl));
+        } finally {
+            System.clearProperty(CommandCache.CACHE_PROPERTY);
+        }
+    }
+
+    @Test
+    public void test_command_cache_manifest() throws Exception {
+        File classes = compile("test/Greet.java", GREET_SOURCE);
+        File cacheDir = Files.createTempDirectory("tools4j-cli-cache").toFile();
+        File jar = new File(cacheDir.getParentFile(), cacheDir.getName() + ".jar");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, "lib/dep.jar");
+        new JarOutputStream(new FileOutputStream(jar), manifest).close();
+        String classpath = System.getProperty("java.class.path");
+        System.setProperty("java.class.path", jar.getAbsolutePath());
+        System.setProperty(CommandCache.CACHE_PROPERTY, cacheDir.getAbsolutePath());
+        try {
+            URLClassLoader cl = new URLClassLoader(new URL[] { classes.toURI().toURL() });
+            List<Command> commands = CommandIndex.open(new File(classes,
+                    CommandIndex.FILEPATH).toURI().toURL()).all();
+            CommandCache.get().write(cl, commands);
+            assertNotNull(CommandCache.get().read(cl));
+
+            // the manifest is not read again while the jar is unchanged
+            long modified = jar.lastModified();
+            Files.write(jar.toPath(), new byte[(int) jar.length()]);
+            jar.setLastModified(modified);
+            assertNotNull(CommandCache.get().read(cl));
+
+            // a modified jar is read again, this one no longer has a manifest
+            jar.setLastModified(modified + 10000);
+            assertNull(CommandCache.get().read(cl));
+        } finally {
+            System.setProperty("java.class.path", classpath);
+            System.clearProperty(CommandCache.CACHE_PROPERTY);
+        }
+    }
+
+    /**
+     * Execute a command using a class loader that see the compiled classes.
+     */
+    static void run(File classes, String... args) throws Exception {
+        final ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        final URLClassLoader cl = new URLClassLoader(new URL[] { classes.toURI().toURL() },
+                previous);
+        Thread.currentThread().setContextClassLoader(cl);
+        try {
+            new CliMain(args).run();
+        } finally {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+
+    /**
+     * Compile sources given as alternating path and content with the
+     * AnnotationProcessor enabled.
+     *
+     * @return directory of compiled classes and generated resources.
+     */
+    static File compile(String... pathAndSource) throws IOException {
+        final File dir = Files.createTempDirectory("tools4j-cli").toFile();
+        final File src = new File(dir, "src");
+        final File classes = new File(dir, "classes");
+        classes.mkdirs();
+        final File[] files = new File[pathAndSource.length / 2];
+        for (int i = 0; i < pathAndSource.length; i += 2) {
+            final File file = new File(src, pathAndSource[i]);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), pathAndSource[i + 1].getBytes("UTF-8"));
+            files[i / 2] = file;
+        }
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final StandardJavaFileManager fm = compiler.getStandardFileManager(null, null, null);
+        try {
+            final Iterable<? extends JavaFileObject> units = fm.getJavaFileObjects(files);
+            final String classpath = location(CliCmd.class) + File.pathSeparator
+                    + location(ValidationException.class);
+            final List<String> options = Arrays.asList("-d", classes.getAbsolutePath(),
+                    "-classpath", classpath, "-implicit:none");
+            final JavaCompiler.CompilationTask task = compiler.getTask(null, fm, null, options,
+                    null, units);
+            task.setProcessors(Arrays.asList(new AnnotationProcessor()));
+            assertTrue("compilation failed", task.call());
+        } finally {
+            fm.close();
+        }
+        return classes;
+    }
+
+    private static String location(Class<?> cls) throws IOException {
+        try {
+            return new File(cls.getProtectionDomain().getCodeSource().getLocation().toURI())
+                    .getAbsolutePath();
+        } catch (java.net.URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Prepare archives without starting a JVM that dumps them.
+ */
+public class CdsArchiveTest {
+
+    @Test
+    public void test_training_command() throws Exception {
+        File archive = new File(Files.createTempDirectory("tools4j-cli").toFile(), "app.jsa");
+        System.setProperty("tools4j.cli.test", "forwarded");
+        System.setProperty(CdsArchive.DUMP_PROPERTY, archive.getPath());
+        try {
+            List<String> cmd = CdsArchive.trainingCommand(archive);
+            assertThat(cmd.get(0), is(new File(new File(System.getProperty("java.home"), "bin"),
+                    "java").getPath()));
+            assertThat(cmd.get(1), is("-XX:ArchiveClassesAtExit=" + archive.getPath()));
+            assertThat(cmd.get(2), is("-D" + CdsArchive.TRAINING_PROPERTY + "=true"));
+            assertTrue(cmd.contains("-Dtools4j.cli.test=forwarded"));
+            // the training JVM must not dump again
+            for (String arg : cmd) {
+                assertFalse(arg, arg.startsWith("-D" + CdsArchive.DUMP_PROPERTY));
+            }
+            assertThat(cmd.subList(cmd.size() - 3, cmd.size()), is(Arrays.asList("-cp",
+                    System.getProperty("java.class.path"), CliMain.class.getName())));
+        } finally {
+            System.clearProperty("tools4j.cli.test");
+            System.clearProperty(CdsArchive.DUMP_PROPERTY);
+        }
+    }
+
+    @Test
+    public void test_args_file() throws Exception {
+        File archive = new File(Files.createTempDirectory("tools4j-cli").toFile(), "app.jsa");
+        File args = CdsArchive.writeArgs(archive);
+        assertThat(args, is(new File(archive.getPath() + CdsArchive.ARGS_SUFFIX)));
+        assertThat(Files.readAllLines(args.toPath(), StandardCharsets.UTF_8), is(Arrays.asList(
+                "-XX:SharedArchiveFile=" + archive.getPath(), "-Xshare:auto")));
+    }
+}
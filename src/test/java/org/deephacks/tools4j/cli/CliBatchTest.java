@@ -0,0 +1,114 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CliBatchTest {
+    static final String BATCH = "# greet a few times\n"
+            + "\n"
+            + "greet -n 'big world' \\\n"
+            + "  2\n"
+            + "greet 1\n"
+            + "greet \"not a number\"\n"
+            + "greet -n \"\\\"quoted\\\"\" 1\n";
+
+    @Test
+    public void test_tokenize() {
+        assertThat(ShellTokenizer.tokenize("  a  b\tc "), is(Arrays.asList("a", "b", "c")));
+        assertThat(ShellTokenizer.tokenize("a 'b c' \"d \\\" e\" f\\ g ''"),
+                is(Arrays.asList("a", "b c", "d \" e", "f g", "")));
+        assertThat(ShellTokenizer.tokenize("a'b'\"c\" # comment"), is(Arrays.asList("abc")));
+        assertThat(ShellTokenizer.tokenize("'\\n' \"\\n\""), is(Arrays.asList("\\n", "\\n")));
+        assertTrue(ShellTokenizer.tokenize("# comment").isEmpty());
+        try {
+            ShellTokenizer.tokenize("a 'b");
+            fail("unterminated quote");
+        } catch (CliException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_stop_at_failure() throws Exception {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertFalse(execute(BATCH, false, err));
+        // options are reset before the instance is reused
+        assertThat(System.getProperty("test.greet"), is("hello world"));
+        String report = err.toString();
+        assertTrue(report, report.startsWith("line 6: "));
+        assertTrue(report, report.contains("Executed 3 command lines, 1 failed"));
+    }
+
+    @Test
+    public void test_continue_after_failure() throws Exception {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertFalse(execute(BATCH, true, err));
+        assertThat(System.getProperty("test.greet"), is("hello \"quoted\""));
+        assertTrue(err.toString().contains("Executed 4 command lines, 1 failed"));
+    }
+
+    @Test
+    public void test_static_final_option() throws Exception {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        // options that cannot be written are not reset when the instance is reused
+        assertTrue(err.toString(), execute("label\nlabel\n", false, err, "test/Label.java",
+                "package test;\n"
+                + "import org.deephacks.tools4j.cli.*;\n"
+                + "public class Label {\n"
+                + "    @CliOption(shortName = \"l\")\n"
+                + "    static final String label = \"fixed\";\n"
+                + "    @CliCmd\n"
+                + "    public void label() {\n"
+                + "        System.setProperty(\"test.label\", label);\n"
+                + "    }\n"
+                + "}\n"));
+        assertThat(System.getProperty("test.label"), is("fixed"));
+        assertTrue(err.toString().contains("Executed 2 command lines, 0 failed"));
+    }
+
+    private static boolean execute(String batch, boolean continueOnFailure,
+            ByteArrayOutputStream err) throws Exception {
+        return execute(batch, continueOnFailure, err, "test/Greet.java",
+                AnnotationProcessorTest.GREET_SOURCE);
+    }
+
+    private static boolean execute(String batch, boolean continueOnFailure,
+            ByteArrayOutputStream err, String... pathAndSource) throws Exception {
+        File classes = AnnotationProcessorTest.compile(pathAndSource);
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(
+                new URLClassLoader(new URL[] { classes.toURI().toURL() }, previous));
+        try {
+            return new CliBatch(new PrintStream(err, true), continueOnFailure)
+                    .execute(new StringReader(batch));
+        } finally {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+}
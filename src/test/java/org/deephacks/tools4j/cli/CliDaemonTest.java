@@ -0,0 +1,114 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Execute commands in a daemon running in a background thread.
+ */
+public class CliDaemonTest {
+
+    static final String ECHO_SOURCE = "package test;\n"
+            + "import org.deephacks.tools4j.cli.*;\n"
+            + "import java.io.*;\n"
+            + "public class Echo {\n"
+            + "    @CliOption(shortName = \"p\")\n"
+            + "    String prefix = \">\";\n"
+            + "    @CliCmd\n"
+            + "    public void echo(String word) throws IOException {\n"
+            + "        BufferedReader r = new BufferedReader(new InputStreamReader(System.in));\n"
+            + "        System.out.println(prefix + word + \" \" + r.readLine() + \" \"\n"
+            + "                + CliEnvironment.getWorkingDirectory());\n"
+            + "    }\n"
+            + "    @CliCmd\n"
+            + "    public void fail() {\n"
+            + "        throw new IllegalStateException(\"failed\");\n"
+            + "    }\n"
+            + "}\n";
+
+    @Test
+    public void test_daemon() throws Exception {
+        final File classes = AnnotationProcessorTest.compile("test/Echo.java", ECHO_SOURCE);
+        final File file = new File(Files.createTempDirectory("tools4j-cli").toFile(), "daemon");
+        assertNull(execute(file, "", new ByteArrayOutputStream(), new ByteArrayOutputStream()));
+
+        final Thread daemon = new Thread() {
+            @Override
+            public void run() {
+                CliDaemon.serve(file);
+            }
+        };
+        daemon.setContextClassLoader(new URLClassLoader(new URL[] { classes.toURI().toURL() },
+                Thread.currentThread().getContextClassLoader()));
+        daemon.setDaemon(true);
+        daemon.start();
+        for (int i = 0; i < 100 && !file.exists(); i++) {
+            Thread.sleep(100);
+        }
+        final String cwd = System.getProperty("user.dir");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertThat(execute(file, "line\n", out, err, "echo", "-p", "#", "hi"), is(0));
+        assertThat(out.toString(), is("#hi line " + cwd + Utils.NEWLINE));
+
+        // option is reset to its initial value when the instance is reused
+        out = new ByteArrayOutputStream();
+        assertThat(execute(file, "again\n", out, err, "echo", "hi"), is(0));
+        assertThat(out.toString(), is(">hi again " + cwd + Utils.NEWLINE));
+
+        err = new ByteArrayOutputStream();
+        assertThat(execute(file, "", out, err, "fail"), is(1));
+        assertTrue(err.toString().startsWith(
+                "Exception in thread \"main\" java.lang.IllegalStateException: failed"));
+
+        // a client that never identify itself does not hold up others
+        final int port = Integer.parseInt(Files.readAllLines(file.toPath(),
+                StandardCharsets.UTF_8).get(0));
+        final Socket stalled = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            final long start = System.nanoTime();
+            out = new ByteArrayOutputStream();
+            assertThat(execute(file, "more\n", out, err, "echo", "hi"), is(0));
+            assertThat(out.toString(), is(">hi more " + cwd + Utils.NEWLINE));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            stalled.close();
+        }
+    }
+
+    private static Integer execute(File file, String stdin, ByteArrayOutputStream out,
+            ByteArrayOutputStream err, String... args) throws Exception {
+        return CliClient.execute(file, args, new ByteArrayInputStream(stdin.getBytes("UTF-8")),
+                new PrintStream(out, true), new PrintStream(err, true));
+    }
+}
@@ -19,14 +19,23 @@ import javax.validation.ValidationException;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.nio.file.Files;
 import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.*;
@@ -136,6 +145,55 @@ public class CliMainTest {
         System.setOut(stdout);
     }
 
+    @Test
+    public void test_profile_startup() {
+        final class ProfiledCommand {
+            @CliOption(shortName = "n")
+            private Integer number;
+
+            @CliCmd
+            public void profiled(Integer arg) {
+            }
+        }
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream stderr = System.err;
+        System.setErr(new PrintStream(err));
+        try {
+            String[] args = new String[] { "profiled", "-n", "1", "2", "--profile-startup" };
+            new CliMain(args).run(new ProfiledCommand());
+        } finally {
+            System.setErr(stderr);
+        }
+        String profile = new String(err.toByteArray());
+        assertTrue(profile.startsWith("Startup profile"));
+        // header, phases and total
+        String[] lines = profile.split(Utils.NEWLINE);
+        assertThat(lines.length, is(StartupProfile.Phase.values().length + 2));
+        assertTrue(lines[lines.length - 1].trim().startsWith("total"));
+        assertFalse(StartupProfile.enabled());
+    }
+
+    @Test
+    public void test_profile_startup_per_thread() throws Exception {
+        StartupProfile.enable(0);
+        try {
+            final boolean[] enabled = { true };
+            Thread other = new Thread() {
+                @Override
+                public void run() {
+                    enabled[0] = StartupProfile.enabled();
+                }
+            };
+            other.start();
+            other.join();
+            assertFalse(enabled[0]);
+            assertTrue(StartupProfile.enabled());
+        } finally {
+            StartupProfile.print(new PrintStream(new ByteArrayOutputStream()));
+        }
+        assertFalse(StartupProfile.enabled());
+    }
+
     @Test
     public void test_unexpected_exception() {
         final IllegalStateException e = new IllegalStateException("Unexpected Exception");
@@ -293,6 +351,255 @@ public class CliMainTest {
     assertThat(XargsCommand.varargs[2], is("3"));
   }
 
+    @Test
+    public void test_inherited_options() {
+        InheritedCommand command = new InheritedCommand();
+        new CliMain(new String[] { "inherited", "-v", "2", "--name", "x" }).run(command);
+        assertThat(command.verbosity, is(2));
+        assertThat(command.name, is("x"));
+        assertThat(command.result, is("x2"));
+    }
+
+    @Test
+    public void test_primitives() {
+        PrimitiveCommand command = new PrimitiveCommand();
+        new CliMain(new String[] { "primitive", "--flag", "-i", "7", "-c", "x", "3",
+                "2.5" }).run(command);
+        assertThat(command.result, is("7 x true 3 2.5"));
+        // flags do not take the next word, negative numbers are values and arguments
+        new CliMain(new String[] { "primitive", "-b", "-3", "-i", "-7", "-c", "-", "-2.5" })
+                .run(command);
+        assertThat(command.result, is("-7 - true -3 -2.5"));
+        try {
+            new CliMain(new String[] { "primitive", "-i", "seven", "3", "2.5" }).run(command);
+            fail("exception expected");
+        } catch (CliException e) {
+            assertTrue(e.getMessage().contains(CliException.WRONG_OPT_TYPE_MSG));
+        }
+    }
+
+    @Test
+    public void test_multiple_values() {
+        MultiValueCommand command = new MultiValueCommand();
+        new CliMain(new String[] { "collections", "-i", "1", "-i", "2", "--units", "SECONDS",
+                "a", "b", "a" }).run(command);
+        assertThat(command.ids, is(Arrays.asList(1, 2)));
+        assertThat(command.units[0], is(TimeUnit.SECONDS));
+        assertThat(command.set, is((Set<String>) new LinkedHashSet<String>(Arrays.asList("a",
+                "b"))));
+
+        new CliMain(new String[] { "map", "x", "a=1", "b=2" }).run(command);
+        Map<String, Integer> expected = new LinkedHashMap<String, Integer>();
+        expected.put("a", 1);
+        expected.put("b", 2);
+        assertThat(command.map, is(expected));
+
+        new CliMain(new String[] { "varargs", "1", "2", "3" }).run(command);
+        assertThat(Arrays.asList(command.longs), is(Arrays.asList(1L, 2L, 3L)));
+
+        try {
+            new CliMain(new String[] { "map", "x", "a=1", "b" }).run(command);
+            fail("exception expected");
+        } catch (CliException e) {
+            assertTrue(e.getMessage().contains(CliException.WRONG_ARG_TYPE_MSG));
+        }
+        try {
+            new CliMain(new String[] { "varargs", "1", "two" }).run(command);
+            fail("exception expected");
+        } catch (CliException e) {
+            assertTrue(e.getMessage().contains("two"));
+        }
+    }
+
+    @Test
+    public void test_primitive_arrays() {
+        MultiValueCommand command = new MultiValueCommand();
+        new CliMain(new String[] { "samples", "-s", "2.5", "--samples", "-1e3", "1", " -2 ",
+                "+3", " -2147483648", "2147483647" }).run(command);
+        assertTrue(Arrays.equals(command.ints, new int[] { 1, -2, 3, Integer.MIN_VALUE,
+                Integer.MAX_VALUE }));
+        assertTrue(Arrays.equals(command.samples, new double[] { 2.5, -1e3 }));
+
+        new CliMain(new String[] { "longs", " -9223372036854775808", "9223372036854775807" })
+                .run(command);
+        assertTrue(Arrays.equals(command.primitiveLongs, new long[] { Long.MIN_VALUE,
+                Long.MAX_VALUE }));
+
+        for (String value : new String[] { "2147483648", " - ", "1-", "1.0", "" }) {
+            try {
+                new CliMain(new String[] { "samples", "1", value }).run(command);
+                fail("exception expected " + value);
+            } catch (CliException e) {
+                assertTrue(e.getMessage().contains(CliException.WRONG_ARG_TYPE_MSG));
+            }
+        }
+        try {
+            new CliMain(new String[] { "samples", "-s", "x", "1" }).run(command);
+            fail("exception expected");
+        } catch (CliException e) {
+            assertTrue(e.getMessage().contains(CliException.WRONG_OPT_TYPE_MSG));
+        }
+    }
+
+    @Test
+    public void test_input_lines() throws Exception {
+        LinesCommand command = new LinesCommand();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1; i <= 10000; i++) {
+            lines.append(i).append('\n');
+        }
+        File file = File.createTempFile("tools4j-cli-lines", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), lines.toString().getBytes("UTF-8"));
+        new CliMain(new String[] { "sum", "file", file.getAbsolutePath() }).run(command);
+        assertThat(command.result, is("file 50005000"));
+
+        InputStream stdin = System.in;
+        try {
+            System.setIn(new ByteArrayInputStream("1\n2\n3".getBytes("UTF-8")));
+            new CliMain(new String[] { "sum", "stdin" }).run(command);
+            assertThat(command.result, is("stdin 6"));
+            System.setIn(new ByteArrayInputStream("4\n".getBytes("UTF-8")));
+            new CliMain(new String[] { "sum", "dash", "-" }).run(command);
+            assertThat(command.result, is("dash 4"));
+            System.setIn(new ByteArrayInputStream("5\nfive\n".getBytes("UTF-8")));
+            try {
+                new CliMain(new String[] { "sum", "wrong" }).run(command);
+                fail("exception expected");
+            } catch (CliException e) {
+                assertTrue(e.getMessage().contains(CliException.WRONG_ARG_TYPE_MSG));
+            }
+        } finally {
+            System.setIn(stdin);
+        }
+    }
+
+    @Test
+    public void test_input_lines_closed() throws Exception {
+        LinesCommand command = new LinesCommand();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1; i <= 100000; i++) {
+            lines.append(i).append('\n');
+        }
+        File file = File.createTempFile("tools4j-cli-lines", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), lines.toString().getBytes("UTF-8"));
+        new CliMain(new String[] { "head", file.getAbsolutePath() }).run(command);
+        assertThat(command.result, is("head 1"));
+        assertFalse(command.values.hasNext());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("tools4j-cli-input".equals(thread.getName())) {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+                assertFalse(thread.isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void test_input_lines_stdin_left_for_next_command() throws Exception {
+        LinesCommand command = new LinesCommand();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1; i <= 100000; i++) {
+            lines.append(i).append('\n');
+        }
+        InputStream stdin = System.in;
+        try {
+            System.setIn(new ByteArrayInputStream(lines.toString().getBytes("UTF-8")));
+            new CliMain(new String[] { "head" }).run(command);
+            assertThat(command.result, is("head 1"));
+            new CliMain(new String[] { "sum", "rest" }).run(command);
+            assertThat(command.result, is("rest " + (5000050000L - 1)));
+        } finally {
+            System.setIn(stdin);
+        }
+    }
+
+    @Test
+    public void test_input_lines_environment() throws Exception {
+        LinesCommand command = new LinesCommand();
+        File file = File.createTempFile("tools4j-cli-lines", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "1\n2\n".getBytes("UTF-8"));
+        CliEnvironment.set(file.getParentFile(), null,
+                new ByteArrayInputStream("3\n4\n".getBytes("UTF-8")));
+        try {
+            new CliMain(new String[] { "sum", "file", file.getName() }).run(command);
+            assertThat(command.result, is("file 3"));
+            new CliMain(new String[] { "sum", "stdin" }).run(command);
+            assertThat(command.result, is("stdin 7"));
+        } finally {
+            CliEnvironment.set(null, null, null);
+        }
+    }
+
+    @Test
+    public void test_command_groups() {
+        CommandRegistry registry = new CommandRegistry();
+        for (Object instance : new Object[] { new LinesCommand(), new GroupCommand(),
+                new GroupCommand.NestedCommand() }) {
+            for (Command cmd : Command.create(instance)) {
+                cmd.setInstance(instance);
+                registry.register(cmd);
+            }
+        }
+        assertTrue(registry.isGroup("db"));
+        assertTrue(registry.isGroup("db schema"));
+        assertFalse(registry.isGroup("db sum"));
+
+        new CliMain(new String[] { "db", "sum", "-v", "2", "3" }, registry).run();
+        assertThat(GroupCommand.result, is("db 6"));
+        new CliMain(new String[] { "db", "schema", "sum", "4" }, registry).run();
+        assertThat(GroupCommand.result, is("schema 4"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = redirectOut(out);
+        try {
+            new CliMain(new String[] { "db", "schema" }, registry).run();
+        } finally {
+            System.setOut(stdout);
+        }
+        String helpscreen = new String(out.toByteArray());
+        assertTrue(helpscreen.startsWith(Utils.AVAILABLE_CMDS_MSG));
+        assertTrue(helpscreen.contains(" db schema sum "));
+        assertFalse(helpscreen.contains(" db sum "));
+
+        try {
+            new CliMain(new String[] { "db", "schema", "bogus" }, registry).run();
+            fail("exception expected");
+        } catch (CliException e) {
+            assertThat(e.getMessage(), is(CliException.COMMAND_NOT_FOUND("db schema bogus")
+                    .getMessage()));
+        }
+    }
+
+    @Test
+    public void test_parallel_conversion() {
+        MultiValueCommand command = new MultiValueCommand();
+        String[] args = new String[5001];
+        args[0] = "varargs";
+        for (int i = 1; i < args.length; i++) {
+            args[i] = Integer.toString(i);
+        }
+        System.setProperty(MultiValueType.PARALLEL_THRESHOLD_PROPERTY, "1000");
+        try {
+            new CliMain(args).run(command);
+            assertThat(command.longs.length, is(5000));
+            for (int i = 0; i < command.longs.length; i++) {
+                assertThat(command.longs[i], is(i + 1L));
+            }
+            args[4000] = "second";
+            args[3000] = "first";
+            try {
+                new CliMain(args).run(command);
+                fail("exception expected");
+            } catch (CliException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("first"));
+            }
+        } finally {
+            System.clearProperty(MultiValueType.PARALLEL_THRESHOLD_PROPERTY);
+        }
+    }
+
     private static URL newURL(String urlString) {
         try {
             return new URL(urlString);
@@ -318,6 +625,117 @@ public class CliMainTest {
       }
   }
 
+    public static class PrimitiveCommand {
+        @CliOption(shortName = "i")
+        private int intValue;
+        @CliOption(shortName = "c")
+        private char charValue;
+        @CliOption(shortName = "b")
+        private boolean flag;
+        String result;
+
+        @CliCmd
+        public void primitive(long l, double d) {
+            result = intValue + " " + charValue + " " + flag + " " + l + " " + d;
+        }
+    }
+
+    public static class MultiValueCommand {
+        @CliOption(shortName = "i")
+        private List<Integer> ids;
+        @CliOption(shortName = "u")
+        private TimeUnit[] units;
+        @CliOption(shortName = "s")
+        private double[] samples;
+        Set<String> set;
+        Map<String, Integer> map;
+        Long[] longs;
+        int[] ints;
+        long[] primitiveLongs;
+
+        @CliCmd
+        public void collections(Set<String> values) {
+            set = values;
+        }
+
+        @CliCmd
+        public void map(String first, Map<String, Integer> values) {
+            map = values;
+        }
+
+        @CliCmd
+        public void varargs(Long... values) {
+            longs = values;
+        }
+
+        @CliCmd
+        public void samples(int... values) {
+            ints = values;
+        }
+
+        @CliCmd
+        public void longs(long[] values) {
+            primitiveLongs = values;
+        }
+    }
+
+    @CliGroup("db")
+    public static class GroupCommand {
+        static String result;
+        @CliOption(shortName = "v")
+        private int value = 1;
+
+        @CliCmd
+        public void sum(int other) {
+            result = "db " + value * other;
+        }
+
+        @CliGroup("schema")
+        public static class NestedCommand {
+            @CliCmd
+            public void sum(int other) {
+                result = "schema " + other;
+            }
+        }
+    }
+
+    public static class LinesCommand {
+        String result;
+
+        @CliCmd
+        public void sum(String label, Iterator<Long> values) {
+            long sum = 0;
+            while (values.hasNext()) {
+                sum += values.next();
+            }
+            result = label + " " + sum;
+        }
+
+        Iterator<Long> values;
+
+        @CliCmd
+        public void head(Iterator<Long> values) {
+            this.values = values;
+            result = "head " + values.next();
+        }
+    }
+
+    public static class BaseCommand {
+        @CliOption(shortName = "v")
+        Integer verbosity = 0;
+    }
+
+    public static class InheritedCommand extends BaseCommand {
+        @CliOption(shortName = "n")
+        private String name;
+        String result;
+
+        @CliCmd
+        public void inherited() {
+            result = name + verbosity;
+        }
+    }
+
     public class TestCommand {
         @CliOption(shortName = "a")
         private String stringValue;
@@ -0,0 +1,93 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.deephacks.tools4j.cli.Command.Argument;
+import org.deephacks.tools4j.cli.Command.Option;
+import org.junit.Test;
+
+public class CommandIndexTest {
+
+    @Test
+    public void testLookupSingleCommand() throws Exception {
+        List<Command> cmds = new ArrayList<Command>();
+        for (String name : new String[] { "stop", "create", "list", "delete", "åka" }) {
+            Command cmd = new Command(name, "test." + name, name + " doc");
+            cmd.addOptions(new Option("v", "value", "value doc"));
+            cmd.addOptions(new Option("f", "flag", "flag doc", true));
+            cmd.addOptions(new Option("n", "number", "number doc", false));
+            cmd.addArgument(new Argument("arg", String.class.getName(), 0, null));
+            if (!name.equals("list")) {
+                cmd.setConstrained(false, name.startsWith("c"));
+            }
+            cmds.add(cmd);
+        }
+        CommandIndex index = CommandIndex.open(ByteBuffer.wrap(write(cmds)));
+        assertThat(index.size(), is(5));
+
+        for (Command expected : cmds) {
+            Command cmd = index.get(expected.getCommand());
+            assertThat(cmd.getCommand(), is(expected.getCommand()));
+            assertThat(cmd.getClassName(), is(expected.getClassName()));
+            assertThat(cmd.getDoc(), is(expected.getDoc()));
+            assertThat(cmd.getOptions().get(0).getLongName(), is("value"));
+            assertThat(cmd.getOptions().get(0).getFlag(), nullValue());
+            assertThat(cmd.getOptions().get(1).getFlag(), is(true));
+            assertThat(cmd.getOptions().get(2).getFlag(), is(false));
+            assertThat(cmd.getArguments().get(0).getDoc(), is(""));
+            assertThat(cmd.getConstrainedOpts(), is(expected.getConstrainedOpts()));
+            assertThat(cmd.getConstrainedArgs(), is(expected.getConstrainedArgs()));
+        }
+        assertThat(index.get("bogus"), nullValue());
+        assertThat(index.get("a"), nullValue());
+        assertThat(index.get("zzz"), nullValue());
+        assertThat(index.all().size(), is(5));
+    }
+
+    @Test
+    public void testNewerVersionFallBackToXml() throws Exception {
+        File classes = AnnotationProcessorTest.compile("test/Greet.java",
+                AnnotationProcessorTest.GREET_SOURCE);
+        RandomAccessFile index = new RandomAccessFile(new File(classes, CommandIndex.FILEPATH),
+                "rw");
+        try {
+            index.seek(4);
+            index.writeShort(CommandIndex.VERSION + 1);
+        } finally {
+            index.close();
+        }
+        CommandRegistry registry = new CommandRegistry();
+        registry.readClasspath(new URLClassLoader(new URL[] { classes.toURI().toURL() }));
+        assertThat(registry.get("greet").getClassName(), is("test.Greet"));
+    }
+
+    private static byte[] write(List<Command> cmds) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CommandIndex.write(cmds, out);
+        return out.toByteArray();
+    }
+}
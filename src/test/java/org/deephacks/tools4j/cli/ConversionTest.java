@@ -0,0 +1,153 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.tools4j.cli;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.deephacks.tools4j.cli.Conversion.ConversionException;
+import org.deephacks.tools4j.cli.Conversion.Converter;
+import org.junit.Test;
+
+public class ConversionTest {
+    private final Conversion c = Conversion.get();
+
+    @Test
+    public void test_best_match() {
+        assertThat(c.convert("s", String.class), is("s"));
+        assertThat(c.convert("5", Integer.class), is(5));
+        assertThat(c.convert("5", Number.class), is((Number) new BigDecimal("5")));
+        assertThat(c.convert("yes", Boolean.class), is(true));
+        assertThat(c.convert("SECONDS", TimeUnit.class), is(TimeUnit.SECONDS));
+        assertThat(c.convert(".", File.class), is(new File(".")));
+        assertThat(c.convert(5, String.class), is("5"));
+    }
+
+    @Test
+    public void test_register_replace_resolved_converters() {
+        assertThat(c.convert("x", Token.class).value, is("x"));
+        c.register(new StringToTokenConverter());
+        assertThat(c.convert("x", Token.class).value, is("token:x"));
+        assertThat(c.convert("5", Integer.class), is(5));
+        c.register(new StringToSpecialTokenConverter());
+        assertThat(c.convert("x", Token.class).value, is("token:x"));
+        assertThat(c.convert("x", SpecialToken.class).value, is("special:x"));
+    }
+
+    @Test
+    public void test_service_converters() {
+        assertThat(c.convert("20C", Temperature.class).celsius, is(20));
+        try {
+            c.convert("hot", Temperature.class);
+            fail("not a temperature");
+        } catch (ConversionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_factories() {
+        assertThat(c.convert("a/b", Path.class), is(Paths.get("a/b")));
+        assertThat(c.convert("http://x/y", URI.class), is(URI.create("http://x/y")));
+        assertThat(c.convert("x", Factory.class).value, is("valueOf:x"));
+        assertThat(c.convert("x", Parsed.class).value, is("parse:x"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                c.convert("x", ConversionTest.class);
+                fail("no factory");
+            } catch (ConversionException e) {
+                // expected
+            }
+        }
+    }
+
+    public static class Factory {
+        final String value;
+
+        private Factory(String value) {
+            this.value = value;
+        }
+
+        public static Factory valueOf(String value) {
+            return new Factory("valueOf:" + value);
+        }
+    }
+
+    public static class Parsed {
+        final String value;
+
+        public Parsed(String value) {
+            this.value = value;
+        }
+
+        public static Parsed parse(CharSequence value) {
+            return new Parsed("parse:" + value);
+        }
+    }
+
+    public static class Token {
+        final String value;
+
+        public Token(String value) {
+            this.value = value;
+        }
+    }
+
+    public static class SpecialToken extends Token {
+        public SpecialToken(String value) {
+            super(value);
+        }
+    }
+
+    public static class Temperature {
+        final int celsius;
+
+        Temperature(int celsius) {
+            this.celsius = celsius;
+        }
+    }
+
+    static final class StringToTokenConverter implements Converter<String, Token> {
+        @Override
+        public Token convert(String source, Class<? extends Token> specificType) {
+            return new Token("token:" + source);
+        }
+    }
+
+    static final class StringToSpecialTokenConverter implements Converter<String, SpecialToken> {
+        @Override
+        public SpecialToken convert(String source, Class<? extends SpecialToken> specificType) {
+            return new SpecialToken("special:" + source);
+        }
+    }
+
+    public static final class StringToTemperatureConverter implements
+            CliConverter<String, Temperature> {
+        @Override
+        public Temperature convert(String source, Class<? extends Temperature> specificType) {
+            if (!source.endsWith("C")) {
+                throw new IllegalArgumentException("Not a temperature " + source);
+            }
+            return new Temperature(Integer.parseInt(source.substring(0, source.length() - 1)));
+        }
+    }
+}
@@ -16,9 +16,16 @@ package org.deephacks.tools4j.cli;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Iterator;
 
+import org.deephacks.tools4j.cli.Command.Option;
+import org.deephacks.tools4j.cli.GNUishParser.OptionSpec;
 import org.junit.Test;
 
 public class GNUishParserTest {
@@ -64,6 +71,133 @@ public class GNUishParserTest {
         assertThat(p.getShortOpts().size(), is(0));
     }
 
+    @Test
+    public void testRepeatedOpts() {
+        String[] args = new String[] { "cmd", "-a", "1", "--all", "2", "-a", "3", "-b", "4" };
+        GNUishParser p = GNUishParser.parse(args);
+
+        assertThat(p.getShortOpt("a"), is("3"));
+        assertThat(p.getOptValues("a", "all"), is(Arrays.asList("1", "2", "3")));
+        assertThat(p.getOptValues("b", "bar"), is(Arrays.asList("4")));
+        assertThat(p.getOptValues("c", "cat").size(), is(0));
+    }
+
+    @Test
+    public void testRepeatedOptsMixedNames() {
+        String[] args = new String[] { "cmd", "-t", "a", "--tags", "b", "-t", "c", "--tags=d" };
+        GNUishParser p = GNUishParser.parse(args);
+
+        assertThat(p.getOptValues("t", "tags"), is(Arrays.asList("a", "b", "c", "d")));
+    }
+
+    @Test
+    public void testArgumentFiles() throws Exception {
+        File dir = Files.createTempDirectory("tools4j-cli-args").toFile();
+        File nested = write(new File(dir, "nested"), "c 'd e' # comment\n\"f\\\"\"");
+        // a word that span several decoded chunks
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append("åx");
+        }
+        File args = write(new File(dir, "args"), "-v value\n\n  a \\\n b\n@"
+                + nested.getAbsolutePath() + " @@literal " + large);
+        GNUishParser p = GNUishParser.parse(new String[] { "cmd", "@" + args.getAbsolutePath(),
+                "g", "@" });
+        assertThat(p.getCommand(), is("cmd"));
+        assertThat(p.getShortOpt("v"), is("value"));
+        assertThat(p.getArgs(), is(Arrays.asList("a", "b", "c", "d e", "f\"", "@literal",
+                large.toString(), "g", "@")));
+
+        write(nested, "@" + args.getAbsolutePath());
+        try {
+            GNUishParser.parse(new String[] { "cmd", "@" + args.getAbsolutePath() });
+            fail("argument file refers to itself");
+        } catch (CliException e) {
+            // expected
+        }
+        try {
+            GNUishParser.parse(new String[] { "cmd", "@" + new File(dir, "missing") });
+            fail("missing argument file");
+        } catch (CliException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testArgumentFilesEndOfOptions() throws Exception {
+        File dir = Files.createTempDirectory("tools4j-cli-args").toFile();
+        File args = write(new File(dir, "args"), "-v value a -- @b");
+        GNUishParser p = GNUishParser.parse(new String[] { "cmd", "@" + args.getAbsolutePath(),
+                "@literal", "@@c" });
+        assertThat(p.getShortOpt("v"), is("value"));
+        assertThat(p.getArgs(), is(Arrays.asList("a", "@b", "@literal", "@@c")));
+
+        p = GNUishParser.parse(new String[] { "cmd", "--", "@" + args.getAbsolutePath() });
+        assertThat(p.getArgs(), is(Arrays.asList("@" + args.getAbsolutePath())));
+
+        // relative to the working directory of the user
+        CliEnvironment.set(dir, null, null);
+        try {
+            p = GNUishParser.parse(new String[] { "cmd", "@args" });
+            assertThat(p.getArgs(), is(Arrays.asList("a", "@b")));
+        } finally {
+            CliEnvironment.set(null, null, null);
+        }
+    }
+
+    @Test
+    public void testOptionSpec() {
+        OptionSpec spec = OptionSpec.of(Arrays.asList(new Option("f", "flag", null, true),
+                new Option("n", "number", null, false), new Option("u", "unknown", null)));
+        GNUishParser p = GNUishParser.parseCommand(new String[] { "cmd", "-f", "a", "-n", "-1",
+                "-2", "-", "--flag", "--number=5", "-fn3", "-u", "b", "--", "-f", "--number" });
+        p.parseOpts(spec);
+        assertThat(p.getCommand(), is("cmd"));
+        assertThat(p.getShortOpt("f"), is("true"));
+        assertThat(p.getLongOpt("flag"), is("true"));
+        assertThat(p.getOptValues("n", "number"), is(Arrays.asList("-1", "5", "3")));
+        assertThat(p.getShortOpt("u"), is("b"));
+        assertThat(p.getArgs(), is(Arrays.asList("a", "-2", "-", "-f", "--number")));
+
+        p = GNUishParser.parseCommand(new String[] { "cmd", "-fn" });
+        try {
+            p.parseOpts(spec);
+            fail("option without value");
+        } catch (CliException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReusedParser() {
+        OptionSpec spec = OptionSpec.of(Arrays.asList(new Option("f", "flag", null, true),
+                new Option("n", "number", null, false)));
+        String[] args = new String[] { "cmd", "-f", "a", "--number", "5", "-fn6", "b" };
+        GNUishParser p = GNUishParser.parseCommand(args);
+        GNUishParser used = GNUishParser.parseCommand(args);
+        assertThat(used == p, is(false));
+        p.release();
+        used.release();
+        p = GNUishParser.parseCommand(args);
+        assertThat(p == used, is(true));
+        p.parseOpts(spec);
+        assertThat(p.getOptValues("n", "number"), is(Arrays.asList("5", "6")));
+        assertThat(p.getArgs(), is(Arrays.asList("a", "b")));
+        p.release();
+
+        // warm up before measuring
+        GNUishParser.allocationPerParse(args, spec, 10000);
+        double allocated = GNUishParser.allocationPerParse(args, spec, 10000);
+        if (allocated >= 0) {
+            assertTrue("allocated " + allocated, allocated < 1);
+        }
+    }
+
+    private static File write(File file, String content) throws Exception {
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+        return file;
+    }
+
     @Test
     public void testLongBooleanOpts() {
         String[] args = new String[] { "cmd", "--foo", "--bar" };